@@ -2,11 +2,17 @@ package com.smsindia.app;
 
 import android.app.Application;
 import com.google.firebase.FirebaseApp;
+import com.smsindia.app.services.DeliveryWritePipeline;
+import com.smsindia.app.utils.OutboxJournal;
 
 public class MyApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
         FirebaseApp.initializeApp(this);
+
+        // Settled outbox entries can be dropped once their Firestore writes are committed
+        OutboxJournal journal = OutboxJournal.getInstance(this);
+        DeliveryWritePipeline.getInstance().setCommitListener(journal::markUploaded);
     }
 }
@@ -3,59 +3,154 @@ package com.smsindia.app.receivers;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.widget.Toast;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FieldValue;
-import java.util.HashMap;
-import java.util.Map;
+import android.util.Log;
 
+import com.smsindia.app.services.DeliveryFeedback;
+import com.smsindia.app.services.DeliveryWritePipeline;
+import com.smsindia.app.services.InFlightRegistry;
+import com.smsindia.app.services.LatencyTracker;
+import com.smsindia.app.utils.OutboxJournal;
+import com.smsindia.dispatch.CircuitBreaker;
+import com.smsindia.dispatch.DispatchMetrics;
+import com.smsindia.dispatch.MultipartAggregator;
+import com.smsindia.dispatch.ResultCodes;
+import com.smsindia.dispatch.SendRateGovernor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sent and delivery reports for every part the app sends. onReceive only
+ * reads the result code and hands the report, kept alive with goAsync(), to
+ * one background thread, which does the journaling and bookkeeping in
+ * arrival order; the user sees a periodic {@link DeliveryFeedback} summary
+ * rather than a toast per message.
+ */
 public class SmsDeliveryReceiver extends BroadcastReceiver {
-    private static int failCount = 0;
+    private static final String TAG = "SmsDeliveryReceiver";
+
+    public static final String ACTION_SMS_SENT = "com.smsindia.SMS_SENT";
+    public static final String ACTION_SMS_DELIVERED = "com.smsindia.SMS_DELIVERED";
+
+    // One thread, so parts of a message and its sent/delivered reports are handled in order
+    private static final ExecutorService reportExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        Context appContext = context.getApplicationContext();
+        int resultCode = getResultCode(); // only valid during onReceive
+        PendingResult pending = goAsync();
+        reportExecutor.execute(() -> {
+            try {
+                if (ACTION_SMS_SENT.equals(intent.getAction())) {
+                    onSent(appContext, intent, resultCode);
+                } else {
+                    onDelivered(appContext, intent, resultCode);
+                }
+            } finally {
+                pending.finish();
+            }
+        });
+    }
+
+    // Radio-level result of one part: the carrier accepted (or refused) the message
+    private static void onSent(Context context, Intent intent, int resultCode) {
+        String docId = intent.getStringExtra("docId");
+        int subId = intent.getIntExtra("subId", -1);
+        long now = System.currentTimeMillis();
+
+        // Throttling codes (LIMIT_EXCEEDED etc.) surface here, so this paces the sending SIM,
+        // and radio failures here are what trip its circuit breaker
+        if (subId != -1) {
+            SendRateGovernor.forSubscription(subId).onResult(resultCode);
+            CircuitBreaker.forSubscription(subId).onResult(resultCode);
+        }
+        if (docId == null) return;
+
+        // Decided once every part of the attempt has reported
+        InFlightRegistry registry = InFlightRegistry.getInstance(context);
+        String attemptKey = attemptKeyOf(intent, docId);
+        InFlightRegistry.Entry entry = registry.onPartResult(docId, attemptKey, resultCode, now);
+        if (entry == null) return;
+        if (entry.isAccepted()) {
+            LatencyTracker.recordSent(entry.subscriptionId, entry.queuedAt, now);
+            // Sent: no device may claim it again, even once our lease lapses before the delivery report
+            DeliveryWritePipeline.getInstance().markSent(docId, deviceIdOf(context, entry.userId), now);
+            return;
+        }
+
+        // Refused by the radio: no full delivery will follow, so retry or settle it now (once)
+        if (registry.complete(docId, attemptKey) == null) return;
+        int failure = entry.getFirstFailure();
+        // Only a message the radio refused outright may go again; resending accepted parts would deliver them twice
+        if (entry.getPartsSent() == 0 && registry.retryLater(entry, failure)) return;
+        if (entry.getPartsSent() > 0) {
+            Log.w(TAG, "Only " + entry.getPartsSent() + " of " + entry.partCount + " parts of " + docId
+                    + " were sent, settling it as failed");
+        }
+        settle(context, intent.getStringExtra("userId"), docId, intent.getStringExtra("phone"), failure,
+                entry.partCount, now);
+    }
+
+    // Intents from before attempts were keyed carry none; those were first attempts
+    private static String attemptKeyOf(Intent intent, String docId) {
+        String attemptKey = intent.getStringExtra("attemptKey");
+        return attemptKey != null ? attemptKey : docId;
+    }
+
+    private static String deviceIdOf(Context context, String userId) {
+        return context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE).getString("deviceId", userId);
+    }
+
+    // A failed delivery report is final: the message left the radio, so a retry could arrive twice
+    private static void onDelivered(Context context, Intent intent, int resultCode) {
         int partIndex = intent.getIntExtra("partIndex", 0);
-        if (partIndex != 0) return; // Only handle once for multipart
+        int partCount = intent.getIntExtra("partCount", 1);
 
         String userId = intent.getStringExtra("userId");
         String docId = intent.getStringExtra("docId");
         String phone = intent.getStringExtra("phone");
-        FirebaseFirestore db = FirebaseFirestore.getInstance();
-
-        String status = "failed";
-        switch (getResultCode()) {
-            case android.app.Activity.RESULT_OK:
-                status = "sent";
-                failCount = 0;
-                Toast.makeText(context, "SMS Sent to " + phone + ". ₹0.16 credited!", Toast.LENGTH_SHORT).show();
-
-                if (userId != null && !userId.isEmpty()) {
-                    db.collection("users")
-                      .document(userId)
-                      .update("balance", FieldValue.increment(0.16));
-                }
+        long now = System.currentTimeMillis();
 
-                if (docId != null) {
-                    db.collection("sms_tasks").document(docId).delete();
-                }
+        String attemptKey = attemptKeyOf(intent, docId);
+        if (partCount > 1 && docId != null) {
+            // Settle a multipart message only once every part of this attempt has reported
+            Integer combined = MultipartAggregator.onPart(attemptKey, partIndex, partCount, resultCode);
+            if (combined == null) return;
+            resultCode = combined;
+        }
+
+        if (docId != null) {
+            InFlightRegistry.Entry entry = InFlightRegistry.getInstance(context).complete(docId, attemptKey);
+            if (entry != null) {
+                LatencyTracker.recordDelivered(entry.subscriptionId, entry.getRadioSentAt(), now);
+            }
+        }
+
+        settle(context, userId, docId, phone, resultCode, partCount, now);
+    }
+
+    // Credited per task; segments (the radio's partCount) are only logged
+    private static void settle(Context context, String userId, String docId, String phone, int resultCode,
+                               int segments, long now) {
+        String status = ResultCodes.statusOf(resultCode);
+        DeliveryFeedback feedback = DeliveryFeedback.getInstance(context);
+        switch (resultCode) {
+            case ResultCodes.RESULT_OK:
+                feedback.onSent(DeliveryWritePipeline.CREDIT_PER_SMS);
                 break;
 
             default:
-                failCount++;
-                Toast.makeText(context, "SMS Failed to " + phone, Toast.LENGTH_SHORT).show();
-                if (docId != null) {
-                    db.collection("sms_tasks").document(docId).delete();
-                }
+                DispatchMetrics.recordFailure(resultCode);
+                feedback.onFailed();
                 break;
         }
 
-        if (userId != null && phone != null) {
-            Map<String, Object> log = new HashMap<>();
-            log.put("userId", userId);
-            log.put("phone", phone);
-            log.put("timestamp", System.currentTimeMillis());
-            log.put("status", status);
-            db.collection("sent_logs").add(log);
+        // Journal first: if the process dies before the flush, the outcome is replayed on restart
+        if (docId != null) {
+            OutboxJournal.getInstance(context).recordOutcome(docId, userId, phone, status, segments, now);
         }
+        // Firestore writes are coalesced into batched commits
+        DeliveryWritePipeline.getInstance().enqueueOutcome(userId, docId, phone, status, segments, now);
     }
-}
\ No newline at end of file
+}
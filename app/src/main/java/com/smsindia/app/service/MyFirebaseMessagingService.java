@@ -3,28 +3,57 @@ package com.smsindia.app.service;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Build;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.messaging.FirebaseMessaging;
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.smsindia.app.MainActivity;
 import com.smsindia.app.R;
+import com.smsindia.app.services.TaskLeaser;
+import com.smsindia.app.ui.SmsServiceHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * ✅ Handles push notifications from Firebase
  * Use to trigger remote SMS syncs or alerts.
+ *
+ * Data messages with {@code type=tasks_available} wake the dispatch engine
+ * at once; an optional comma-separated {@code taskIds} names up to
+ * {@link TaskLeaser#MAX_BATCH} tasks to lease directly. Send them as
+ * high-priority messages so a dozing device is allowed to start its
+ * foreground service. Tokens are registered per device under
+ * devices/{deviceId} so the backend can target a device.
  */
 public class MyFirebaseMessagingService extends FirebaseMessagingService {
 
+    private static final String TAG = "FCMService";
     private static final String CHANNEL_ID = "firebase_channel";
 
+    public static final String TYPE_TASKS_AVAILABLE = "tasks_available";
+    private static final String PREF_REGISTERED_TOKEN = "fcmTokenRegistered";
+
     @Override
     public void onMessageReceived(@NonNull RemoteMessage message) {
         super.onMessageReceived(message);
+        Map<String, String> data = message.getData();
+        if (TYPE_TASKS_AVAILABLE.equals(data.get("type"))) {
+            onTasksAvailable(data.get("taskIds"));
+            return;
+        }
+
         String title = message.getNotification() != null ? message.getNotification().getTitle() : "SMSIndia";
         String body = message.getNotification() != null ? message.getNotification().getBody() : "New update received";
 
@@ -34,7 +63,51 @@ public class MyFirebaseMessagingService extends FirebaseMessagingService {
     @Override
     public void onNewToken(@NonNull String token) {
         super.onNewToken(token);
-        // Optional: Save token to Firestore for admin control
+        registerToken(getApplicationContext(), token);
+    }
+
+    private void onTasksAvailable(String taskIdList) {
+        ArrayList<String> taskIds = new ArrayList<>();
+        if (taskIdList != null) {
+            for (String taskId : taskIdList.split(",")) {
+                String trimmed = taskId.trim();
+                if (!trimmed.isEmpty() && taskIds.size() < TaskLeaser.MAX_BATCH) {
+                    taskIds.add(trimmed);
+                }
+            }
+        }
+        try {
+            if (!SmsServiceHelper.wakeService(getApplicationContext(), taskIds)) {
+                Log.d(TAG, "Tasks available, but dispatch is switched off");
+            }
+        } catch (IllegalStateException e) {
+            // A normal-priority message does not let a background app start a foreground service
+            Log.w(TAG, "Could not wake dispatch from the background", e);
+        }
+    }
+
+    /** Makes sure the backend has this device's current token, e.g. when dispatch starts. */
+    public static void refreshToken(Context context) {
+        FirebaseMessaging.getInstance().getToken()
+                .addOnSuccessListener(token -> registerToken(context, token))
+                .addOnFailureListener(e -> Log.w(TAG, "Failed to get FCM token", e));
+    }
+
+    // Stores the token on devices/{deviceId}; skipped if this exact token is already registered
+    private static void registerToken(Context context, String token) {
+        SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+        String deviceId = prefs.getString("deviceId", null);
+        if (deviceId == null) return; // not logged in yet; registered again when dispatch starts
+        if (token.equals(prefs.getString(PREF_REGISTERED_TOKEN, null))) return;
+
+        Map<String, Object> device = new HashMap<>();
+        device.put("fcmToken", token);
+        device.put("userId", prefs.getString("mobile", null));
+        device.put("tokenUpdatedAt", System.currentTimeMillis());
+        FirebaseFirestore.getInstance().collection("devices").document(deviceId)
+                .set(device, SetOptions.merge())
+                .addOnSuccessListener(unused -> prefs.edit().putString(PREF_REGISTERED_TOKEN, token).apply())
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to register FCM token", e));
     }
 
     private void showNotification(String title, String msg) {
@@ -2,29 +2,66 @@ package com.smsindia.app.ui;
 
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.widget.LinearLayout;
-import android.widget.TextView;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
 import com.smsindia.app.R;
+import com.smsindia.app.services.DailyRollup;
+import com.smsindia.app.utils.LogCache;
 
-public class DeliveryLogActivity extends AppCompatActivity {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Delivery history as one row per day from the daily_stats rollups, so
+ * opening it costs one read per day shown, plus one row for everything
+ * older, which is how history from before the rollups is reached. A row's
+ * individual sent_logs are only fetched when it is tapped, one page at a
+ * time ({@code startAfter} on timestamp and id), the next page as the list
+ * nears the end of what is loaded. Days that are long enough over are kept
+ * in the on-device {@link LogCache} once paged through, and shown from there
+ * the next time without reads. Days that can still gain entries, today
+ * above all, are not cached; reopening one fetches only what was logged
+ * after its newest loaded entry.
+ */
+public class DeliveryLogActivity extends AppCompatActivity implements DeliveryLogAdapter.Listener {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 20; // rows before a day's "Show more" row that trigger its next page
+    private static final int DAYS_SHOWN = 60;
+    // Logs reach Firestore after their timestamp (flush delay, a phone that was offline), so a day is only cached this long after it ended
+    private static final long SETTLE_MS = DailyRollup.DAY_MS;
 
-    private LinearLayout logsContainer;
     private FirebaseFirestore db;
+    private LogCache cache;
     private String uid;
+    private DeliveryLogAdapter adapter;
+    private LinearLayoutManager layoutManager;
+
+    // Cache reads and writes, off the main thread and in order; shared like the cache itself
+    private static final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_delivery_logs);
 
-        logsContainer = findViewById(R.id.logs_container);
         db = FirebaseFirestore.getInstance();
+        cache = LogCache.getInstance(this);
 
         SharedPreferences prefs = getSharedPreferences("SMSINDIA_USER", MODE_PRIVATE);
         uid = prefs.getString("mobile", "");
@@ -35,39 +72,193 @@ public class DeliveryLogActivity extends AppCompatActivity {
             return;
         }
 
-        loadLogs();
+        RecyclerView list = findViewById(R.id.logs_list);
+        adapter = new DeliveryLogAdapter(this);
+        layoutManager = new LinearLayoutManager(this);
+        list.setLayoutManager(layoutManager);
+        list.setAdapter(adapter);
+        list.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                prefetch();
+            }
+        });
+
+        loadDays();
     }
 
-    private void loadLogs() {
-        db.collection("sent_logs")
-                .whereEqualTo("userId", uid)
-                .orderBy("timestamp", com.google.firebase.firestore.Query.Direction.DESCENDING)
+    private void loadDays() {
+        adapter.setFooter("Loading...");
+        db.collection("users").document(uid).collection(DailyRollup.COLLECTION)
+                .orderBy(DailyRollup.FIELD_DAY_START, Query.Direction.DESCENDING)
+                .limit(DAYS_SHOWN)
                 .get()
-                .addOnSuccessListener(snapshot -> {
-                    logsContainer.removeAllViews();
-                    if (snapshot.isEmpty()) {
-                        addText("No logs found yet");
-                        return;
+                .addOnSuccessListener(this, snapshot -> {
+                    List<DeliveryLogAdapter.Day> days = new ArrayList<>(snapshot.size() + 1);
+                    long oldest = Long.MAX_VALUE;
+                    for (DocumentSnapshot rollup : snapshot.getDocuments()) {
+                        Long dayStart = rollup.getLong(DailyRollup.FIELD_DAY_START);
+                        if (dayStart != null) {
+                            days.add(new DeliveryLogAdapter.Day(rollup, dayStart));
+                            oldest = Math.min(oldest, dayStart);
+                        }
                     }
-                    for (QueryDocumentSnapshot doc : snapshot) {
-                        String phone = doc.getString("phone");
-                        Long timestamp = doc.getLong("timestamp");
-                        if (phone == null || timestamp == null) continue;
+                    // Days past DAYS_SHOWN, and history logged before there were rollups
+                    days.add(DeliveryLogAdapter.Day.before(oldest));
+                    adapter.setDays(days);
+                    adapter.setFooter(null);
+                })
+                .addOnFailureListener(this, e -> {
+                    Toast.makeText(this, "Failed to load logs: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    adapter.setFooter(null);
+                });
+    }
 
-                        String formatted = android.text.format.DateFormat.format("dd MMM, hh:mm a", timestamp).toString();
-                        addText("Phone: " + phone + "  •  " + formatted);
+    @Override
+    public void onDayClicked(DeliveryLogAdapter.Day day) {
+        day.expanded = !day.expanded;
+        if (day.expanded && day.entries.isEmpty()) {
+            loadPage(day);
+        } else if (day.expanded && !day.cacheable && day.rollup != null) {
+            syncNewer(day);
+        }
+        adapter.refresh();
+    }
+
+    // Loads the next page of an expanded day whose end is on screen or about to be
+    private void prefetch() {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+        DeliveryLogAdapter.Day day = adapter.dayToLoad(first,
+                layoutManager.findLastVisibleItemPosition() + PREFETCH_DISTANCE);
+        if (day != null) {
+            loadPage(day);
+        }
+    }
+
+    // What was logged on the day after its newest loaded entry
+    private void syncNewer(DeliveryLogAdapter.Day day) {
+        if (day.loading) return;
+        day.loading = true;
+        LogCache.Entry newest = day.entries.get(0);
+        rangeQuery(day.dayStart, day.to)
+                .endBefore(newest.timestamp, newest.id)
+                .limit(PAGE_SIZE)
+                .get()
+                .addOnSuccessListener(this, snapshot -> {
+                    List<LogCache.Entry> newer = toEntries(snapshot);
+                    if (snapshot.size() == PAGE_SIZE) {
+                        // More than a page: start over from it rather than leave a gap above the old entries
+                        day.entries.clear();
+                        day.exhausted = false;
                     }
+                    day.entries.addAll(0, newer);
+                    day.loading = false;
+                    adapter.refresh();
                 })
-                .addOnFailureListener(e -> {
+                .addOnFailureListener(this, e -> {
+                    // Offline: the entries already loaded are still worth showing
                     Toast.makeText(this, "Failed to load logs: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    day.loading = false;
+                    adapter.refresh();
                 });
     }
 
-    private void addText(String text) {
-        TextView tv = new TextView(this);
-        tv.setText(text);
-        tv.setTextSize(15f);
-        tv.setPadding(20, 10, 20, 10);
-        logsContainer.addView(tv);
+    @Override
+    public void onMoreClicked(DeliveryLogAdapter.Day day) {
+        loadPage(day);
+    }
+
+    // The day's next page: from the cache if the whole day is there, else from Firestore
+    private void loadPage(DeliveryLogAdapter.Day day) {
+        if (day.loading || day.exhausted) return;
+        day.loading = true;
+        adapter.refresh();
+
+        long dayStart = day.dayStart;
+        long dayEnd = day.to;
+        boolean first = day.entries.isEmpty();
+        if (first) {
+            // Decided once, so a day is cached from its first page or not at all; older history never is
+            day.cacheable = day.rollup != null && dayEnd + SETTLE_MS <= System.currentTimeMillis();
+        }
+        if (!day.fromCache && !(first && day.cacheable)) {
+            fetchPage(day);
+            return;
+        }
+
+        LogCache.Entry after = day.oldest();
+        boolean known = day.fromCache;
+        cacheExecutor.execute(() -> {
+            boolean cached = known || cache.isComplete(uid, dayStart);
+            List<LogCache.Entry> page = cached ? cache.page(uid, dayStart, dayEnd, after, PAGE_SIZE) : null;
+            mainHandler.post(() -> {
+                if (isDestroyed()) return;
+                if (page == null) {
+                    fetchPage(day);
+                    return;
+                }
+                day.fromCache = true;
+                onPageLoaded(day, page, page.size() < PAGE_SIZE);
+            });
+        });
+    }
+
+    private void fetchPage(DeliveryLogAdapter.Day day) {
+        Query query = rangeQuery(day.dayStart, day.to);
+        LogCache.Entry oldest = day.oldest();
+        if (oldest != null) {
+            query = query.startAfter(oldest.timestamp, oldest.id);
+        }
+        query.limit(PAGE_SIZE)
+                .get()
+                .addOnSuccessListener(this, snapshot -> {
+                    List<LogCache.Entry> page = toEntries(snapshot);
+                    boolean exhausted = snapshot.size() < PAGE_SIZE;
+                    if (day.cacheable) {
+                        long dayStart = day.dayStart;
+                        long dayEnd = day.to;
+                        cacheExecutor.execute(() -> cache.putDay(uid, dayStart, dayEnd, page, exhausted));
+                    }
+                    onPageLoaded(day, page, exhausted);
+                })
+                .addOnFailureListener(this, e -> {
+                    Toast.makeText(this, "Failed to load logs: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    day.loading = false;
+                    adapter.refresh();
+                });
+    }
+
+    private void onPageLoaded(DeliveryLogAdapter.Day day, List<LogCache.Entry> page, boolean exhausted) {
+        day.entries.addAll(page);
+        day.exhausted = exhausted;
+        day.loading = false;
+        adapter.refresh();
+        // Keep going while the day's end is still in reach; checked after the new rows are laid out
+        mainHandler.post(() -> {
+            if (!isDestroyed()) prefetch();
+        });
+    }
+
+    // Logged in [from, to), newest first; the document id breaks timestamp ties, so cursors never skip or repeat an entry
+    private Query rangeQuery(long from, long to) {
+        return db.collection("sent_logs")
+                .whereEqualTo("userId", uid)
+                .whereGreaterThanOrEqualTo("timestamp", from)
+                .whereLessThan("timestamp", to)
+                .orderBy("timestamp", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+    }
+
+    private static List<LogCache.Entry> toEntries(QuerySnapshot snapshot) {
+        List<LogCache.Entry> entries = new ArrayList<>(snapshot.size());
+        for (DocumentSnapshot doc : snapshot.getDocuments()) {
+            Long timestamp = doc.getLong("timestamp");
+            if (timestamp == null) continue;
+            Long segments = doc.getLong("segments");
+            entries.add(new LogCache.Entry(doc.getId(), doc.getString("phone"), doc.getString("status"),
+                    segments != null ? segments.intValue() : 1, timestamp));
+        }
+        return entries;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,262 @@
+package com.smsindia.app.ui;
+
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.smsindia.app.services.DailyRollup;
+import com.smsindia.app.utils.LogCache;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rows of the delivery log: a summary line, then one row per day from the
+ * daily rollups, newest first, then a row for everything older than the
+ * oldest of them, which covers history from before the rollups existed, and
+ * a status footer ("Loading..."). Under an expanded row come the sent_logs
+ * entries loaded for it so far and a row saying whether more are on their
+ * way or can be asked for.
+ */
+public class DeliveryLogAdapter extends RecyclerView.Adapter<DeliveryLogAdapter.RowHolder> {
+
+    private static final int TYPE_SUMMARY = 0;
+    private static final int TYPE_DAY = 1;
+    private static final int TYPE_ENTRY = 2;
+    private static final int TYPE_DAY_FOOTER = 3;
+    private static final int TYPE_FOOTER = 4;
+
+    interface Listener {
+        /** The day's row was tapped. */
+        void onDayClicked(Day day);
+
+        /** The "Show more" row under an expanded day was tapped; the list also asks as it nears that row. */
+        void onMoreClicked(Day day);
+    }
+
+    /**
+     * One day of history, or all history before {@link #to} if it has no
+     * rollup, and the paging state of its drill-down; main thread only.
+     */
+    static class Day {
+        final DocumentSnapshot rollup; // null for the row of older history
+        final long dayStart;
+        final long to; // exclusive
+        final List<LogCache.Entry> entries = new ArrayList<>();
+        boolean expanded = false;
+        boolean loading = false;
+        boolean exhausted = false;
+        boolean cacheable = false; // long enough over that no more entries can arrive
+        boolean fromCache = false; // the whole day is in the LogCache
+
+        Day(DocumentSnapshot rollup, long dayStart) {
+            this(rollup, dayStart, dayStart + DailyRollup.DAY_MS);
+        }
+
+        private Day(DocumentSnapshot rollup, long dayStart, long to) {
+            this.rollup = rollup;
+            this.dayStart = dayStart;
+            this.to = to;
+        }
+
+        /** Every entry logged before {@code to}, Long.MAX_VALUE for all of them. */
+        static Day before(long to) {
+            return new Day(null, 0, to);
+        }
+
+        /** Cursor for the next page: the last entry loaded, or null for none. */
+        LogCache.Entry oldest() {
+            return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+        }
+    }
+
+    private static class Row {
+        final int type;
+        final Day day;                // TYPE_DAY, TYPE_ENTRY, TYPE_DAY_FOOTER
+        final LogCache.Entry entry;   // TYPE_ENTRY
+
+        Row(int type, Day day, LogCache.Entry entry) {
+            this.type = type;
+            this.day = day;
+            this.entry = entry;
+        }
+    }
+
+    static class RowHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        RowHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    private final Listener listener;
+    private List<Day> days = Collections.emptyList();
+    private final List<Row> rows = new ArrayList<>(); // days and what is expanded under them, without summary and footer
+    private String footer;
+    private final SimpleDateFormat dayLabel = new SimpleDateFormat("dd MMM yyyy", Locale.getDefault());
+    private final SimpleDateFormat dateTime = new SimpleDateFormat("dd MMM yyyy, hh:mm a", Locale.getDefault());
+    private final SimpleDateFormat time = new SimpleDateFormat("hh:mm a", Locale.getDefault());
+
+    DeliveryLogAdapter(Listener listener) {
+        this.listener = listener;
+        dayLabel.setTimeZone(DailyRollup.ZONE); // the rollup's day, wherever the phone is
+        // Entries in the same zone, so each shows under the day it was counted in
+        dateTime.setTimeZone(DailyRollup.ZONE);
+        time.setTimeZone(DailyRollup.ZONE);
+    }
+
+    /** The days to show, newest first. */
+    void setDays(List<Day> days) {
+        this.days = days;
+        refresh();
+    }
+
+    /** Rebuilds the rows after a day was expanded, collapsed or given more entries. */
+    void refresh() {
+        rows.clear();
+        for (Day day : days) {
+            rows.add(new Row(TYPE_DAY, day, null));
+            if (!day.expanded) continue;
+            for (LogCache.Entry entry : day.entries) {
+                rows.add(new Row(TYPE_ENTRY, day, entry));
+            }
+            if (day.loading || !day.exhausted || day.entries.isEmpty()) {
+                rows.add(new Row(TYPE_DAY_FOOTER, day, null));
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * The first expanded day between the two adapter positions (inclusive)
+     * whose "Show more" row is there and has a page to load, or null.
+     */
+    Day dayToLoad(int from, int to) {
+        for (int position = Math.max(from, 1); position <= Math.min(to, rows.size()); position++) {
+            Row row = rows.get(position - 1);
+            if (row.type == TYPE_DAY_FOOTER && !row.day.loading && !row.day.exhausted) return row.day;
+        }
+        return null;
+    }
+
+    /** A status line under the days, or null for none. */
+    void setFooter(String footer) {
+        this.footer = footer;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return 1 + rows.size() + (footer != null ? 1 : 0);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        if (position == 0) return TYPE_SUMMARY;
+        if (position > rows.size()) return TYPE_FOOTER;
+        return rows.get(position - 1).type;
+    }
+
+    @NonNull
+    @Override
+    public RowHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView tv = new TextView(parent.getContext());
+        tv.setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        tv.setTextSize(viewType == TYPE_DAY ? 16f : 15f);
+        boolean nested = viewType == TYPE_ENTRY || viewType == TYPE_DAY_FOOTER;
+        tv.setPadding(nested ? 48 : 20, 10, 20, 10);
+        return new RowHolder(tv);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull RowHolder holder, int position) {
+        holder.text.setOnClickListener(null);
+        switch (getItemViewType(position)) {
+            case TYPE_SUMMARY:
+                holder.text.setText(summary());
+                break;
+            case TYPE_FOOTER:
+                holder.text.setText(footer);
+                break;
+            case TYPE_DAY: {
+                Day day = rows.get(position - 1).day;
+                holder.text.setText(dayText(day));
+                holder.text.setOnClickListener(v -> listener.onDayClicked(day));
+                break;
+            }
+            case TYPE_DAY_FOOTER: {
+                Day day = rows.get(position - 1).day;
+                if (day.loading) {
+                    holder.text.setText("Loading...");
+                } else if (day.exhausted) {
+                    holder.text.setText("No logs found");
+                } else {
+                    holder.text.setText("Show more");
+                    holder.text.setOnClickListener(v -> listener.onMoreClicked(day));
+                }
+                break;
+            }
+            default:
+                Row row = rows.get(position - 1);
+                LogCache.Entry entry = row.entry;
+                // Older history spans many days, so its entries carry their date
+                String at = (row.day.rollup == null ? dateTime : time).format(entry.timestamp);
+                boolean sent = entry.status == null || "sent".equals(entry.status);
+                holder.text.setText(at + "  •  " + entry.phone + (sent ? "" : "  •  " + entry.status));
+                break;
+        }
+    }
+
+    // Totals over the days listed, labelled with the dates they span; days without sends have no rollup
+    private String summary() {
+        long sent = 0;
+        double earnings = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Day day : days) {
+            if (day.rollup == null) continue;
+            sent += count(day.rollup, DailyRollup.FIELD_SENT);
+            earnings += amount(day.rollup, DailyRollup.FIELD_EARNINGS);
+            first = Math.min(first, day.dayStart);
+            last = Math.max(last, day.dayStart);
+        }
+        if (first == Long.MAX_VALUE) return "Delivery history";
+
+        String range = first == last ? dayLabel.format(first)
+                : dayLabel.format(first) + " – " + dayLabel.format(last);
+        return String.format(Locale.US, "%s: %d sent  •  ₹%.2f earned", range, sent, earnings);
+    }
+
+    private String dayText(Day day) {
+        if (day.rollup == null) {
+            return day.to == Long.MAX_VALUE ? "All messages" : "Before " + dayLabel.format(day.to);
+        }
+        StringBuilder text = new StringBuilder(dayLabel.format(day.dayStart))
+                .append("  •  ").append(count(day.rollup, DailyRollup.FIELD_SENT)).append(" sent");
+        long failed = count(day.rollup, DailyRollup.FIELD_FAILED);
+        if (failed > 0) text.append(", ").append(failed).append(" failed");
+        long unknown = count(day.rollup, DailyRollup.FIELD_UNKNOWN);
+        if (unknown > 0) text.append(", ").append(unknown).append(" unconfirmed");
+        text.append(String.format(Locale.US, "  •  ₹%.2f", amount(day.rollup, DailyRollup.FIELD_EARNINGS)));
+        return text.toString();
+    }
+
+    private static long count(DocumentSnapshot day, String field) {
+        Long value = day.getLong(field);
+        return value != null ? value : 0;
+    }
+
+    private static double amount(DocumentSnapshot day, String field) {
+        Double value = day.getDouble(field);
+        return value != null ? value : 0;
+    }
+}
@@ -2,32 +2,62 @@ package com.smsindia.app.ui;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Build;
 
 import com.smsindia.app.services.SmsForegroundService;
 
+import java.util.ArrayList;
+
 public class SmsServiceHelper {
 
-    // Start foreground SMS sending service, with optional SIM slot
+    // Start foreground SMS sending service, restricted to one SIM slot (or SIM_ALL)
     public static void startService(Context context, int simSlot) {
+        prefs(context).edit()
+                .putBoolean(SmsForegroundService.PREF_DISPATCH_ACTIVE, true)
+                .putInt(SmsForegroundService.PREF_SIM_SLOT, simSlot)
+                .apply();
+
         Intent intent = new Intent(context, SmsForegroundService.class);
-        intent.putExtra("simSlot", simSlot);
+        intent.putExtra(SmsForegroundService.EXTRA_SIM_SLOT, simSlot);
+        start(context, intent);
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            context.startForegroundService(intent);
-        } else {
-            context.startService(intent);
-        }
+    // Wake dispatch for new tasks (optionally named), restarting the service only if the user left it on
+    public static boolean wakeService(Context context, ArrayList<String> taskIds) {
+        SharedPreferences prefs = prefs(context);
+        if (!prefs.getBoolean(SmsForegroundService.PREF_DISPATCH_ACTIVE, false)) return false;
+
+        Intent intent = new Intent(context, SmsForegroundService.class);
+        intent.setAction(SmsForegroundService.ACTION_WAKE);
+        intent.putExtra(SmsForegroundService.EXTRA_SIM_SLOT,
+                prefs.getInt(SmsForegroundService.PREF_SIM_SLOT, SmsForegroundService.SIM_ALL));
+        intent.putStringArrayListExtra(SmsForegroundService.EXTRA_TASK_IDS, taskIds);
+        start(context, intent);
+        return true;
     }
 
-    // Overload for default SIM slot 0
+    // Overload that sends on every active SIM
     public static void startService(Context context) {
-        startService(context, 0);
+        startService(context, SmsForegroundService.SIM_ALL);
     }
 
     // Stop the foreground SMS sending service
     public static void stopService(Context context) {
+        prefs(context).edit().putBoolean(SmsForegroundService.PREF_DISPATCH_ACTIVE, false).apply();
         Intent intent = new Intent(context, SmsForegroundService.class);
         context.stopService(intent);
     }
-}
\ No newline at end of file
+
+    private static void start(Context context, Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+    }
+}
@@ -7,6 +7,8 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -22,29 +24,61 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
+import com.google.firebase.firestore.FirebaseFirestore;
 import com.smsindia.app.R;
-import com.smsindia.app.services.SmsForegroundService;
+import com.smsindia.app.services.CreditLedger;
+import com.smsindia.dispatch.DispatchMetrics;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class TaskFragment extends Fragment {
 
     private static final int SMS_PERMISSION_CODE = 1001;
+    private static final long METRICS_REFRESH_MS = 1000;
 
     private Button startBtn, stopBtn, viewLogsBtn;
-    private TextView statusMessage, failHint;
+    private TextView statusMessage, failHint, metricsText;
     private ProgressBar sendingProgress;
     private CardView statusCard;
 
+    private String uid = "";
+
+    private final Handler metricsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable metricsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            // The service runs in this process, so its metrics are read directly
+            String metrics = DispatchMetrics.snapshot().format();
+            Double balance = uid.isEmpty() ? null : CreditLedger.getCachedBalance(uid);
+            metricsText.setText(balance == null ? metrics
+                    : String.format(Locale.US, "Balance: ₹%.2f\n", balance) + metrics);
+            metricsHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
+    // Reads the shards only when the cached balance has gone stale
+    private final Runnable balanceRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!uid.isEmpty()) {
+                CreditLedger.getBalance(FirebaseFirestore.getInstance(), uid);
+            }
+            metricsHandler.postDelayed(this, CreditLedger.BALANCE_TTL_MS);
+        }
+    };
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         View v = inflater.inflate(R.layout.fragment_task, container, false);
 
+        uid = requireActivity().getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE).getString("mobile", "");
+
         statusCard = v.findViewById(R.id.status_card);
         statusMessage = v.findViewById(R.id.status_message);
+        metricsText = v.findViewById(R.id.metrics_text);
         failHint = v.findViewById(R.id.fail_hint);
         sendingProgress = v.findViewById(R.id.sending_progress);
 
@@ -76,6 +110,20 @@ public class TaskFragment extends Fragment {
         return v;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        metricsHandler.post(balanceRefresh);
+        metricsHandler.post(metricsRefresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        metricsHandler.removeCallbacks(metricsRefresh);
+        metricsHandler.removeCallbacks(balanceRefresh);
+    }
+
     // Permission check across all needed permissions
     private boolean hasAllSmsPermissions() {
         boolean hasSend = ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.SEND_SMS) == PackageManager.PERMISSION_GRANTED;
@@ -124,12 +172,8 @@ public class TaskFragment extends Fragment {
     }
 
     private void startSmsSending() {
-        Intent serviceIntent = new Intent(requireContext(), SmsForegroundService.class);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            requireContext().startForegroundService(serviceIntent);
-        } else {
-            requireContext().startService(serviceIntent);
-        }
+        // Through the helper, so FCM wakes know dispatch was left on
+        SmsServiceHelper.startService(requireContext());
 
         statusMessage.setText("Started sending SMS tasks...");
         statusCard.setCardBackgroundColor(Color.parseColor("#FFFDE7"));
@@ -140,8 +184,7 @@ public class TaskFragment extends Fragment {
     }
 
     private void stopSmsSending() {
-        Intent serviceIntent = new Intent(requireContext(), SmsForegroundService.class);
-        requireContext().stopService(serviceIntent);
+        SmsServiceHelper.stopService(requireContext());
 
         statusMessage.setText("Sending stopped.");
         statusCard.setCardBackgroundColor(Color.parseColor("#FFECB3"));
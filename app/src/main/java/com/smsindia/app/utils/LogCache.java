@@ -0,0 +1,171 @@
+package com.smsindia.app.utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-device copy of the user's sent_logs entries for past days, so the
+ * delivery log screen can show a day again without reads.
+ *
+ * Entries are cached per day, in the same (timestamp, id) order as the
+ * Firestore query. A day is only served from the cache once it is
+ * complete: the caller puts the last page of a day that is over, which
+ * cannot gain entries any more, after all the others. Entries past
+ * {@link #MAX_ENTRIES_PER_USER} are pruned from the oldest end in the same
+ * transaction, and a day that loses any of them counts as incomplete again.
+ * Call it from one background thread.
+ */
+public class LogCache extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "log_cache.db";
+    private static final int DB_VERSION = 3;
+    private static final String TABLE = "logs";
+    private static final String DAYS_TABLE = "complete_days";
+    public static final int MAX_ENTRIES_PER_USER = 5000;
+
+    private static LogCache instance;
+
+    /** One sent_logs entry. */
+    public static class Entry {
+        public final String id;
+        public final String phone;
+        public final String status;
+        public final int segments;
+        public final long timestamp;
+
+        public Entry(String id, String phone, String status, int segments, long timestamp) {
+            this.id = id;
+            this.phone = phone;
+            this.status = status;
+            this.segments = segments;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private LogCache(Context context) {
+        super(context.getApplicationContext(), DB_NAME, null, DB_VERSION);
+    }
+
+    public static synchronized LogCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new LogCache(context);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "user_id TEXT NOT NULL, "
+                + "phone TEXT, "
+                + "status TEXT, "
+                + "segments INTEGER NOT NULL DEFAULT 1, "
+                + "timestamp INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_logs_user_time ON " + TABLE + " (user_id, timestamp DESC, id DESC)");
+        db.execSQL("CREATE TABLE " + DAYS_TABLE + " ("
+                + "user_id TEXT NOT NULL, "
+                + "day_start INTEGER NOT NULL, "
+                + "day_end INTEGER NOT NULL, "
+                + "PRIMARY KEY (user_id, day_start))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only a cache: start over
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + DAYS_TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Up to {@code limit} entries logged in [{@code from}, {@code to}), newest
+     * first, strictly older than {@code after} in (timestamp, id) order, or
+     * from the newest if it is null.
+     */
+    public List<Entry> page(String userId, long from, long to, Entry after, int limit) {
+        String fromArg = String.valueOf(from);
+        String toArg = String.valueOf(to);
+        String selection = "user_id = ? AND timestamp >= ? AND timestamp < ?";
+        String[] args = new String[]{userId, fromArg, toArg};
+        if (after != null) {
+            selection += " AND (timestamp < ? OR (timestamp = ? AND id < ?))";
+            String ts = String.valueOf(after.timestamp);
+            args = new String[]{userId, fromArg, toArg, ts, ts, after.id};
+        }
+
+        List<Entry> entries = new ArrayList<>(Math.min(limit, 256));
+        try (Cursor cursor = getReadableDatabase().query(TABLE,
+                new String[]{"id", "phone", "status", "segments", "timestamp"},
+                selection, args, null, null, "timestamp DESC, id DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getInt(3), cursor.getLong(4)));
+            }
+        }
+        return entries;
+    }
+
+    /** Whether every entry of the day starting at {@code dayStart} is cached. */
+    public boolean isComplete(String userId, long dayStart) {
+        try (Cursor cursor = getReadableDatabase().query(DAYS_TABLE, new String[]{"day_start"},
+                "user_id = ? AND day_start = ?", new String[]{userId, String.valueOf(dayStart)},
+                null, null, null)) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    /**
+     * Adds one page of the day [{@code dayStart}, {@code dayEnd}). With
+     * {@code last}, every earlier page has been put and the day is marked
+     * complete, unless the prune in the same transaction cuts into it; only
+     * for days that are over.
+     */
+    public void putDay(String userId, long dayStart, long dayEnd, List<Entry> entries, boolean last) {
+        if (entries.isEmpty() && !last) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Entry entry : entries) {
+                values.clear();
+                values.put("id", entry.id);
+                values.put("user_id", userId);
+                values.put("phone", entry.phone);
+                values.put("status", entry.status);
+                values.put("segments", entry.segments);
+                values.put("timestamp", entry.timestamp);
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            if (last) {
+                values.clear();
+                values.put("user_id", userId);
+                values.put("day_start", dayStart);
+                values.put("day_end", dayEnd);
+                db.insertWithOnConflict(DAYS_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            prune(db, userId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Drops the oldest entries past the cap, first unmarking every day that has one of them; caller holds a transaction
+    private void prune(SQLiteDatabase db, String userId) {
+        String cut = "SELECT timestamp FROM " + TABLE + " WHERE user_id = ?"
+                + " ORDER BY timestamp DESC, id DESC LIMIT -1 OFFSET ?";
+        db.execSQL("DELETE FROM " + DAYS_TABLE + " WHERE user_id = ? AND EXISTS ("
+                        + "SELECT 1 FROM (" + cut + ") WHERE timestamp >= day_start AND timestamp < day_end)",
+                new Object[]{userId, userId, MAX_ENTRIES_PER_USER});
+        db.execSQL("DELETE FROM " + TABLE + " WHERE user_id = ? AND id NOT IN ("
+                        + "SELECT id FROM " + TABLE + " WHERE user_id = ? ORDER BY timestamp DESC, id DESC LIMIT ?)",
+                new Object[]{userId, userId, MAX_ENTRIES_PER_USER});
+    }
+}
@@ -0,0 +1,299 @@
+package com.smsindia.app.utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device outbox that survives process death. Every claimed task, send
+ * attempt and delivery outcome is journalled here so that a restarted
+ * service never sends the same task twice and still uploads outcomes that
+ * never reached Firestore.
+ *
+ * Writes are queued and applied by a single writer thread, which commits
+ * everything queued so far in one transaction (group commit). Only a send
+ * attempt waits for its commit, since the message must not reach the radio
+ * before its row is on disk; attempts from all lanes that arrive together
+ * share one commit. The writer also loads the sent filter before
+ * anything else, so opening the journal costs the main thread nothing, and
+ * appends the ids it gained every {@link #FILTER_SAVE_INTERVAL_MS}.
+ */
+public class OutboxJournal extends SQLiteOpenHelper {
+
+    private static final String TAG = "OutboxJournal";
+    private static final String DB_NAME = "outbox.db";
+    private static final int DB_VERSION = 3;
+    private static final String TABLE = "outbox";
+
+    public static final String STATE_CLAIMED = "claimed";
+    public static final String STATE_ATTEMPTED = "attempted";
+    public static final String STATE_SETTLED = "settled";
+
+    private static final int MAX_GROUP = 256;
+    private static final long PRUNE_AFTER_MS = 24 * 60 * 60 * 1000;
+    private static final long FILTER_SAVE_INTERVAL_MS = 5000;
+    private static final long ATTEMPT_COMMIT_TIMEOUT_MS = 10000;
+
+    private static OutboxJournal instance;
+
+    private final BlockingQueue<Op> ops = new LinkedBlockingQueue<>();
+    // Stamped on the outcomes this process has handed to its DeliveryWritePipeline, which keeps them until committed
+    private final String runId = UUID.randomUUID().toString();
+    // Tasks already handed to the radio, by this run or a previous one; bounded, loaded and persisted by the writer
+    private final RecentlySentFilter attempted;
+    private long filterSavedAt = 0;            // writer thread only
+    private boolean checkpointRequested = false; // writer thread only
+
+    private interface Op {
+        void apply(SQLiteDatabase db);
+    }
+
+    // An op whose caller waits until the group commit holding it is done
+    private static class AckedOp implements Op {
+        final Op op;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean committed = false;
+
+        AckedOp(Op op) {
+            this.op = op;
+        }
+
+        @Override
+        public void apply(SQLiteDatabase db) {
+            op.apply(db);
+        }
+    }
+
+    /** Receives outcomes that were journalled but never uploaded. */
+    public interface ReplayCallback {
+        void onPendingOutcome(String taskId, String userId, String phone, String status, int segments, long timestamp);
+    }
+
+    private OutboxJournal(Context context) {
+        super(context.getApplicationContext(), DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        attempted = new RecentlySentFilter(new File(context.getApplicationContext().getFilesDir(), "recently_sent.bloom"));
+        Thread writer = new Thread(this::runWriter, "OutboxJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static synchronized OutboxJournal getInstance(Context context) {
+        if (instance == null) {
+            instance = new OutboxJournal(context);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "task_id TEXT PRIMARY KEY, "
+                + "phone TEXT, "
+                + "message TEXT, "
+                + "user_id TEXT, "
+                + "state TEXT NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "outcome TEXT, "
+                + "segments INTEGER NOT NULL DEFAULT 1, "
+                + "run_id TEXT, "
+                + "updated_at INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_outbox_state ON " + TABLE + " (state)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Keep un-uploaded outcomes
+        if (oldVersion < 2) {
+            // They were all single-segment credits
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN segments INTEGER NOT NULL DEFAULT 1");
+        }
+        if (oldVersion < 3) {
+            // Handed to no pipeline of this run, so the next replay uploads them
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN run_id TEXT");
+        }
+    }
+
+    public void recordClaimed(String taskId, String phone, String message) {
+        long now = System.currentTimeMillis();
+        ops.add(db -> {
+            ContentValues values = new ContentValues();
+            values.put("task_id", taskId);
+            values.put("phone", phone);
+            values.put("message", message);
+            values.put("state", STATE_CLAIMED);
+            values.put("updated_at", now);
+            db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        });
+    }
+
+    /**
+     * Records that the task is about to be handed to the radio, and blocks
+     * until that is committed, so a process that dies right after the send
+     * still knows on restart that the task went out.
+     *
+     * @param attemptKey the task id for a first attempt, a per-retry key after a retryable failure
+     * @return false if this attempt was already sent, or could not be journalled; either way it must not be sent
+     */
+    public boolean recordAttempt(String taskId, String attemptKey) throws InterruptedException {
+        if (!attempted.add(attemptKey)) return false;
+        if (!attemptKey.equals(taskId)) {
+            attempted.add(taskId); // a retried task still counts as sent for claim filtering
+        }
+
+        long now = System.currentTimeMillis();
+        AckedOp attempt = new AckedOp(db -> db.execSQL("UPDATE " + TABLE
+                + " SET state = ?, attempts = attempts + 1, updated_at = ? WHERE task_id = ?",
+                new Object[]{STATE_ATTEMPTED, now, taskId}));
+        ops.add(attempt);
+        if (!attempt.done.await(ATTEMPT_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS) || !attempt.committed) {
+            // Left unsent: its lease lapses and another device takes it
+            Log.e(TAG, "Could not journal the attempt on " + taskId + ", not sending it");
+            return false;
+        }
+        return true;
+    }
+
+    /** O(1) check used to skip in-flight and recently completed tasks before claiming them. */
+    public boolean wasAttempted(String taskId) {
+        return attempted.contains(taskId);
+    }
+
+    /**
+     * Records a delivery outcome that the caller also hands to the
+     * DeliveryWritePipeline; the row stays until its upload is confirmed.
+     */
+    public void recordOutcome(String taskId, String userId, String phone, String status, int segments, long timestamp) {
+        attempted.add(taskId);
+
+        ops.add(db -> {
+            ContentValues values = new ContentValues();
+            values.put("task_id", taskId);
+            values.put("user_id", userId);
+            values.put("phone", phone);
+            values.put("state", STATE_SETTLED);
+            values.put("outcome", status);
+            values.put("segments", segments);
+            values.put("run_id", runId);
+            values.put("updated_at", timestamp);
+            if (db.update(TABLE, values, "task_id = ?", new String[]{taskId}) == 0) {
+                db.insert(TABLE, null, values);
+            }
+        });
+    }
+
+    /** Drops settled rows once their Firestore writes have been committed. */
+    public void markUploaded(List<String> taskIds) {
+        ops.add(db -> {
+            for (String taskId : taskIds) {
+                db.delete(TABLE, "task_id = ? AND state = ?", new String[]{taskId, STATE_SETTLED});
+            }
+        });
+    }
+
+    /** Snapshots the sent filter on the writer thread, e.g. when the service stops. */
+    public void checkpoint() {
+        ops.add(db -> checkpointRequested = true);
+    }
+
+    /**
+     * Restores the journal after a restart: reloads the tasks already sent and
+     * hands every un-uploaded outcome to the callback, once per process.
+     * Outcomes recorded or replayed earlier in this process are skipped: the
+     * pipeline holds them until they are committed, and uploading them again
+     * would add their logs and rollup counts twice. Blocks until done, so
+     * call it off the main thread before dispatch starts.
+     */
+    public void replay(ReplayCallback callback) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        ops.add(db -> {
+            try {
+                db.delete(TABLE, "state != ? AND updated_at < ?",
+                        new String[]{STATE_SETTLED, String.valueOf(System.currentTimeMillis() - PRUNE_AFTER_MS)});
+
+                List<String> handedOver = new ArrayList<>();
+                try (Cursor cursor = db.query(TABLE,
+                        new String[]{"task_id", "user_id", "phone", "state", "outcome", "segments", "updated_at",
+                                "run_id"},
+                        "state != ?", new String[]{STATE_CLAIMED}, null, null, "updated_at")) {
+                    while (cursor.moveToNext()) {
+                        String taskId = cursor.getString(0);
+                        attempted.add(taskId);
+                        if (STATE_SETTLED.equals(cursor.getString(3)) && !runId.equals(cursor.getString(7))) {
+                            callback.onPendingOutcome(taskId, cursor.getString(1), cursor.getString(2),
+                                    cursor.getString(4), cursor.getInt(5), cursor.getLong(6));
+                            handedOver.add(taskId);
+                        }
+                    }
+                }
+                ContentValues stamp = new ContentValues();
+                stamp.put("run_id", runId);
+                for (String taskId : handedOver) {
+                    db.update(TABLE, stamp, "task_id = ?", new String[]{taskId});
+                }
+                Log.d(TAG, "Replayed journal: " + handedOver.size() + " outcomes to upload");
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await(30, TimeUnit.SECONDS);
+    }
+
+    private void runWriter() {
+        attempted.load();
+        List<Op> group = new ArrayList<>();
+        while (true) {
+            boolean committed = false;
+            try {
+                group.add(ops.take());
+                ops.drainTo(group, MAX_GROUP - 1);
+
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (Op op : group) {
+                        op.apply(db);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                committed = true;
+
+                long now = System.currentTimeMillis();
+                if (checkpointRequested) {
+                    checkpointRequested = false;
+                    filterSavedAt = now;
+                    attempted.checkpoint();
+                } else if (now - filterSavedAt >= FILTER_SAVE_INTERVAL_MS) {
+                    filterSavedAt = now;
+                    attempted.saveIfDirty();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to write " + group.size() + " journal entries", e);
+            } finally {
+                for (Op op : group) {
+                    if (op instanceof AckedOp) {
+                        ((AckedOp) op).committed = committed;
+                        ((AckedOp) op).done.countDown();
+                    }
+                }
+                group.clear();
+            }
+        }
+    }
+}
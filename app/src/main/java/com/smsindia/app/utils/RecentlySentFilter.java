@@ -0,0 +1,298 @@
+package com.smsindia.app.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Bounded "already sent" set keyed by sms_tasks docId, so the dispatch loop
+ * can skip tasks that are in flight or were completed recently while their
+ * documents still wait to be deleted.
+ *
+ * Exact answers come from a small LRU of the most recent ids. Behind it sits a
+ * two-generation Bloom filter that is persisted across restarts and rotated
+ * by size and age, so memory stays fixed. A Bloom false positive only means
+ * this device skips the task; its lease then expires and another device (or a
+ * later rotation) picks it up.
+ *
+ * The 512 KB of Bloom generations are only written out as a snapshot when a
+ * generation rotates or on {@link #checkpoint()}. In between, ids added since
+ * the snapshot are appended to a small log next to it, and {@link #load()}
+ * replays that log on top of the snapshot. Until load() has run, which the
+ * owner does off the main thread, every lookup waits for it.
+ */
+public class RecentlySentFilter {
+
+    private static final String TAG = "RecentlySentFilter";
+
+    private static final int LRU_CAPACITY = 10000;
+    private static final int GENERATION_CAPACITY = 100000;
+    private static final long GENERATION_MAX_AGE_MS = 6 * 60 * 60 * 1000;
+    private static final int BLOOM_BITS = 1 << 21; // 256 KB per generation, ~0.01% FPR when full
+    private static final int BLOOM_WORDS = BLOOM_BITS / 64;
+    private static final int BLOOM_HASHES = 7;
+    private static final int FILE_VERSION = 1;
+
+    private final File file;
+    private final File logFile;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Object saveLock = new Object(); // one snapshot or log append at a time
+    private final LinkedHashMap<String, Boolean> recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > LRU_CAPACITY;
+        }
+    };
+
+    private long[] current = new long[BLOOM_WORDS];
+    private long[] previous = new long[BLOOM_WORDS];
+    private int currentCount = 0;
+    private long currentStartedAt = System.currentTimeMillis();
+    private List<String> unsaved = new ArrayList<>(); // added since the last snapshot or log append
+    private boolean rotated = false;                  // a generation rotated since the last snapshot
+
+    /** Does not read the file yet: call {@link #load()}, off the main thread. */
+    public RecentlySentFilter(File file) {
+        this.file = file;
+        this.logFile = new File(file.getPath() + ".log");
+    }
+
+    public boolean contains(String id) {
+        awaitLoaded();
+        synchronized (this) {
+            return containsLocked(id);
+        }
+    }
+
+    /**
+     * Adds the id.
+     *
+     * @return false if the id was (probably) already present
+     */
+    public boolean add(String id) {
+        awaitLoaded();
+        synchronized (this) {
+            if (!addLocked(id)) return false;
+            unsaved.add(id);
+            return true;
+        }
+    }
+
+    /**
+     * Persists what was added since the last call: the ids are appended to
+     * the log, or, if a generation rotated meanwhile, a full snapshot is
+     * written instead.
+     */
+    public void saveIfDirty() {
+        List<String> ids;
+        synchronized (this) {
+            if (rotated) {
+                ids = null;
+            } else {
+                if (unsaved.isEmpty()) return;
+                ids = unsaved;
+                unsaved = new ArrayList<>();
+            }
+        }
+        if (ids == null) {
+            checkpoint();
+            return;
+        }
+
+        synchronized (saveLock) {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(logFile, true)))) {
+                for (String id : ids) out.writeUTF(id);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append to " + logFile, e);
+            }
+        }
+    }
+
+    /** Writes both Bloom generations as a snapshot and starts a fresh log, e.g. when the service stops. */
+    public void checkpoint() {
+        synchronized (saveLock) {
+            long[] cur;
+            long[] prev;
+            int count;
+            long startedAt;
+            synchronized (this) {
+                cur = current.clone();
+                prev = previous.clone();
+                count = currentCount;
+                startedAt = currentStartedAt;
+                unsaved = new ArrayList<>();
+                rotated = false;
+            }
+            if (writeSnapshot(cur, prev, count, startedAt) && logFile.exists() && !logFile.delete()) {
+                Log.e(TAG, "Failed to delete " + logFile);
+            }
+        }
+    }
+
+    private boolean writeSnapshot(long[] cur, long[] prev, int count, long startedAt) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(count);
+            out.writeLong(startedAt);
+            for (long word : cur) out.writeLong(word);
+            for (long word : prev) out.writeLong(word);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save filter", e);
+            return false;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace " + file);
+            return false;
+        }
+        return true;
+    }
+
+    /** Reads the snapshot and replays the log on top of it; lookups wait until this has run. */
+    public void load() {
+        try {
+            loadSnapshot();
+            replayLog();
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void loadSnapshot() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) return;
+            int count = in.readInt();
+            long startedAt = in.readLong();
+            long[] cur = new long[BLOOM_WORDS];
+            long[] prev = new long[BLOOM_WORDS];
+            for (int i = 0; i < BLOOM_WORDS; i++) cur[i] = in.readLong();
+            for (int i = 0; i < BLOOM_WORDS; i++) prev[i] = in.readLong();
+            synchronized (this) {
+                current = cur;
+                previous = prev;
+                currentCount = count;
+                currentStartedAt = startedAt;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load filter, starting empty", e);
+        }
+    }
+
+    // A torn last entry (the process died mid-append) just ends the replay
+    private void replayLog() {
+        if (!logFile.exists()) return;
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (in.available() > 0) {
+                String id = in.readUTF();
+                synchronized (this) {
+                    addLocked(id);
+                }
+                replayed++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Log ended early after " + replayed + " ids", e);
+        }
+        Log.d(TAG, "Replayed " + replayed + " ids");
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Caller holds the lock
+    private boolean containsLocked(String id) {
+        if (recent.containsKey(id)) return true;
+        long h1 = hash1(id);
+        long h2 = hash2(id);
+        return bloomContains(current, h1, h2) || bloomContains(previous, h1, h2);
+    }
+
+    // Caller holds the lock
+    private boolean addLocked(String id) {
+        if (containsLocked(id)) return false;
+
+        recent.put(id, Boolean.TRUE);
+        maybeRotate();
+        long h1 = hash1(id);
+        long h2 = hash2(id);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = index(h1, h2, i);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        currentCount++;
+        return true;
+    }
+
+    // Old ids age out: the previous generation is dropped when the current one fills up or gets old
+    private void maybeRotate() {
+        long now = System.currentTimeMillis();
+        if (currentCount < GENERATION_CAPACITY && now - currentStartedAt < GENERATION_MAX_AGE_MS) return;
+
+        long[] recycled = previous;
+        Arrays.fill(recycled, 0L);
+        previous = current;
+        current = recycled;
+        currentCount = 0;
+        currentStartedAt = now;
+        rotated = true;
+    }
+
+    private static boolean bloomContains(long[] bits, long h1, long h2) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = index(h1, h2, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    // Kirsch-Mitzenmacher double hashing: k indexes from two base hashes
+    private static int index(long h1, long h2, int i) {
+        return (int) ((h1 + i * h2) & (BLOOM_BITS - 1));
+    }
+
+    // FNV-1a, 64 bit
+    private static long hash1(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // String.hashCode spread with a murmur3 finalizer; forced odd so the k probes differ
+    private static long hash2(String s) {
+        long h = s.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h | 1L;
+    }
+}
@@ -24,26 +24,91 @@ public class SmsStorageHelper {
         }
     }
 
+    /** Receives inbox messages one at a time; return false to stop early. */
+    public interface MessageCallback {
+        boolean onMessage(SmsMessageData message);
+    }
+
+    private static final String[] INBOX_PROJECTION =
+            new String[]{Telephony.Sms._ID, Telephony.Sms.ADDRESS, Telephony.Sms.BODY, Telephony.Sms.DATE};
+    private static final String INBOX_ORDER = Telephony.Sms.DATE + " DESC, " + Telephony.Sms._ID + " DESC";
+
+    /**
+     * Streams inbox messages newer than {@code since} (0 for all), newest
+     * first, to {@code callback} straight off the cursor, so memory stays
+     * flat however large the inbox is. At most {@code limit} messages are
+     * read (0 for no limit). Returns how many were delivered.
+     */
+    public static int forEachInboxMessage(Context context, long since, int limit, MessageCallback callback) {
+        return forEach(context, since, null, limit, callback);
+    }
+
+    /**
+     * One page of up to {@code pageSize} inbox messages newer than
+     * {@code since}, newest first, continuing after {@code after} (the last
+     * message of the previous page, or null for the first page). Pages are
+     * keyed on (date, id), so messages arriving in between do not shift them.
+     */
+    public static List<SmsMessageData> getInboxPage(Context context, long since, SmsMessageData after, int pageSize) {
+        List<SmsMessageData> page = new ArrayList<>(pageSize);
+        forEach(context, since, after, pageSize, page::add);
+        return page;
+    }
+
+    /**
+     * The whole inbox in one list. Prefer {@link #forEachInboxMessage} or
+     * {@link #getInboxPage} on large inboxes.
+     */
     public static List<SmsMessageData> getInboxMessages(Context context) {
         List<SmsMessageData> messages = new ArrayList<>();
-        Uri inboxUri = Telephony.Sms.Inbox.CONTENT_URI;
+        forEach(context, 0, null, 0, messages::add);
+        return messages;
+    }
+
+    private static int forEach(Context context, long since, SmsMessageData after, int limit,
+                               MessageCallback callback) {
+        StringBuilder selection = new StringBuilder();
+        List<String> args = new ArrayList<>(3);
+        if (since > 0) {
+            selection.append(Telephony.Sms.DATE).append(" > ?");
+            args.add(String.valueOf(since));
+        }
+        if (after != null) {
+            if (selection.length() > 0) selection.append(" AND ");
+            selection.append("(").append(Telephony.Sms.DATE).append(" < ? OR (")
+                    .append(Telephony.Sms.DATE).append(" = ? AND ").append(Telephony.Sms._ID).append(" < ?))");
+            args.add(String.valueOf(after.date));
+            args.add(String.valueOf(after.date));
+            args.add(after.id);
+        }
 
-        Cursor cursor = context.getContentResolver().query(inboxUri,
-                new String[]{Telephony.Sms._ID, Telephony.Sms.ADDRESS, Telephony.Sms.BODY, Telephony.Sms.DATE},
-                null, null, Telephony.Sms.DEFAULT_SORT_ORDER);
+        int count = 0;
+        try (Cursor cursor = queryInbox(context, selection.length() > 0 ? selection.toString() : null,
+                args.toArray(new String[0]), limit)) {
+            if (cursor == null) return 0;
 
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                String id = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms._ID));
-                String address = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS));
-                String body = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.BODY));
-                long date = cursor.getLong(cursor.getColumnIndexOrThrow(Telephony.Sms.DATE));
+            // Resolved once per query, not per row
+            int idIndex = cursor.getColumnIndexOrThrow(Telephony.Sms._ID);
+            int addressIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS);
+            int bodyIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY);
+            int dateIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE);
 
-                messages.add(new SmsMessageData(id, address, body, date));
+            while (cursor.moveToNext() && (limit <= 0 || count < limit)) {
+                SmsMessageData message = new SmsMessageData(cursor.getString(idIndex), cursor.getString(addressIndex),
+                        cursor.getString(bodyIndex), cursor.getLong(dateIndex));
+                count++;
+                if (!callback.onMessage(message)) break;
             }
-            cursor.close();
         }
-        return messages;
+        return count;
+    }
+
+    // The limit rides on the sort order on every API level: SmsProvider only implements the plain query,
+    // which the Bundle form falls back to without QUERY_ARG_LIMIT, so the SQL is the only way to pass it
+    private static Cursor queryInbox(Context context, String selection, String[] args, int limit) {
+        Uri inboxUri = Telephony.Sms.Inbox.CONTENT_URI;
+        String order = limit > 0 ? INBOX_ORDER + " LIMIT " + limit : INBOX_ORDER;
+        return context.getContentResolver().query(inboxUri, INBOX_PROJECTION, selection, args, order);
     }
 
     public static void insertSentSms(Context context, String phoneNumber, String message) {
@@ -0,0 +1,170 @@
+package com.smsindia.app.services;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exactly-once earnings. Every credit is an entry in users/{uid}/credits
+ * keyed by task id, written in the same transaction as the increment it
+ * pays for, so a redelivered broadcast or a replayed outcome finds its entry
+ * and credits nothing. The increments go to one of {@link #SHARDS} documents
+ * in users/{uid}/balance_shards, picked by task id, instead of all landing on
+ * the users/{uid} document and its ~1 write/sec limit.
+ *
+ * The balance is the users/{uid} "balance" field (the opening balance and
+ * anything credited before the shards existed) plus the sum of the shards.
+ * It is cached per user for {@link #BALANCE_TTL_MS}; credits committed by
+ * this device are added to the cached value as they land.
+ */
+public class CreditLedger {
+
+    private static final String TAG = "CreditLedger";
+
+    public static final int SHARDS = 10;
+    public static final long BALANCE_TTL_MS = 60 * 1000;
+
+    /** One settled, sent task waiting to be credited. */
+    public static class Credit {
+        public final String userId;
+        public final String taskId;
+        public final double amount;
+        public final int segments;
+        public final long timestamp;
+
+        public Credit(String userId, String taskId, double amount, int segments, long timestamp) {
+            this.userId = userId;
+            this.taskId = taskId;
+            this.amount = amount;
+            this.segments = segments;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class CachedBalance {
+        final double value;
+        final long readAt;
+
+        CachedBalance(double value, long readAt) {
+            this.value = value;
+            this.readAt = readAt;
+        }
+    }
+
+    private static final Map<String, CachedBalance> balances = new ConcurrentHashMap<>();
+
+    private CreditLedger() {
+    }
+
+    public static DocumentReference entry(FirebaseFirestore db, String userId, String taskId) {
+        return db.collection("users").document(userId).collection("credits").document(taskId);
+    }
+
+    public static DocumentReference shard(FirebaseFirestore db, String userId, String taskId) {
+        int index = Math.floorMod(taskId.hashCode(), SHARDS);
+        return db.collection("users").document(userId).collection("balance_shards").document(String.valueOf(index));
+    }
+
+    /**
+     * Inside a transaction: reads the ledger entries of all credits, then
+     * writes an entry and a shard increment for each one not credited yet.
+     * Increments that land on the same shard are merged. All reads happen
+     * before the first write, as Firestore requires, and each is a round
+     * trip of its own, so callers keep the list short (see
+     * {@link DeliveryWritePipeline#MAX_CREDITS_PER_TRANSACTION}).
+     *
+     * @return the credits that were applied; the rest had been credited before
+     */
+    public static List<Credit> apply(FirebaseFirestore db, Transaction transaction, List<Credit> credits)
+            throws FirebaseFirestoreException {
+        List<Credit> fresh = new ArrayList<>(credits.size());
+        for (Credit credit : credits) {
+            if (!transaction.get(entry(db, credit.userId, credit.taskId)).exists()) {
+                fresh.add(credit);
+            }
+        }
+
+        Map<DocumentReference, Double> increments = new HashMap<>();
+        for (Credit credit : fresh) {
+            Map<String, Object> ledger = new HashMap<>();
+            ledger.put("amount", credit.amount);
+            ledger.put("segments", credit.segments);
+            ledger.put("timestamp", credit.timestamp);
+            transaction.set(entry(db, credit.userId, credit.taskId), ledger);
+
+            DocumentReference shard = shard(db, credit.userId, credit.taskId);
+            Double current = increments.get(shard);
+            increments.put(shard, current == null ? credit.amount : current + credit.amount);
+        }
+        for (Map.Entry<DocumentReference, Double> increment : increments.entrySet()) {
+            Map<String, Object> update = new HashMap<>();
+            update.put("balance", FieldValue.increment(increment.getValue()));
+            transaction.set(increment.getKey(), update, SetOptions.merge());
+        }
+        return fresh;
+    }
+
+    /** Adds committed credits to the cached balances, so they show up without a re-read. */
+    public static void onCommitted(List<Credit> applied) {
+        for (Credit credit : applied) {
+            balances.computeIfPresent(credit.userId,
+                    (uid, cached) -> new CachedBalance(cached.value + credit.amount, cached.readAt));
+        }
+    }
+
+    /** Last known balance, or null if it has not been read yet. Never reads Firestore. */
+    public static Double getCachedBalance(String userId) {
+        CachedBalance cached = balances.get(userId);
+        return cached != null ? cached.value : null;
+    }
+
+    /**
+     * The user's balance: the cached value while it is younger than
+     * {@link #BALANCE_TTL_MS}, otherwise one read of the user document and
+     * one of the shard collection.
+     */
+    public static Task<Double> getBalance(FirebaseFirestore db, String userId) {
+        CachedBalance cached = balances.get(userId);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.readAt < BALANCE_TTL_MS) {
+            return Tasks.forResult(cached.value);
+        }
+
+        DocumentReference user = db.collection("users").document(userId);
+        Task<DocumentSnapshot> opening = user.get();
+        Task<QuerySnapshot> shards = user.collection("balance_shards").get();
+        return Tasks.whenAllSuccess(opening, shards).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Could not read balance of " + userId, task.getException());
+                if (cached != null) return cached.value;
+                throw task.getException();
+            }
+            double total = valueOf(opening.getResult());
+            for (DocumentSnapshot shard : shards.getResult()) {
+                total += valueOf(shard);
+            }
+            balances.put(userId, new CachedBalance(total, now));
+            return total;
+        });
+    }
+
+    private static double valueOf(DocumentSnapshot snapshot) {
+        Double balance = snapshot.getDouble("balance");
+        return balance != null ? balance : 0;
+    }
+}
@@ -0,0 +1,170 @@
+package com.smsindia.app.services;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Per-user per-day summary of sent_logs: sent, failed and unknown counts,
+ * segments, earnings and the same counts per hour. One document per day in
+ * users/{uid}/daily_stats, named by the date, so history reads cost one
+ * document per day instead of one per message.
+ *
+ * Documents are only ever incremented. The write pipeline adds up the
+ * outcomes of one flush per user and day in a {@link Delta} and merges it in
+ * with a single write. Days follow India time on every device, so a user's
+ * devices all add to the same documents.
+ */
+public class DailyRollup {
+
+    public static final String COLLECTION = "daily_stats";
+    public static final TimeZone ZONE = TimeZone.getTimeZone("Asia/Kolkata");
+    public static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    public static final String FIELD_DAY_START = "dayStart";
+    public static final String FIELD_SENT = "sent";
+    public static final String FIELD_FAILED = "failed";
+    public static final String FIELD_UNKNOWN = "unknown";
+    public static final String FIELD_SEGMENTS = "segments";
+    public static final String FIELD_EARNINGS = "earnings";
+    public static final String FIELD_HOURS = "hours"; // "00".."23" -> {sent, failed, unknown}
+
+    /** Outcomes of one user on one day, not yet written. */
+    public static class Delta {
+        public final String userId;
+        public final String day;
+        final long dayStart;
+        long sent, failed, unknown, segments;
+        double earnings;
+        final long[][] hours = new long[24][]; // per hour {sent, failed, unknown}, null if untouched
+
+        Delta(String userId, String day, long dayStart) {
+            this.userId = userId;
+            this.day = day;
+            this.dayStart = dayStart;
+        }
+
+        /** Counts one outcome; "sent" and "unknown" are kept apart, every other status is a failure. */
+        public void add(String status, int segments, double earnings, long timestamp) {
+            int kind = "sent".equals(status) ? 0 : "unknown".equals(status) ? 2 : 1;
+            if (kind == 0) {
+                sent++;
+                this.segments += segments;
+                this.earnings += earnings;
+            } else if (kind == 1) {
+                failed++;
+            } else {
+                unknown++;
+            }
+            int hour = (int) ((timestamp - dayStart) / (60 * 60 * 1000));
+            hour = Math.max(0, Math.min(23, hour));
+            if (hours[hour] == null) hours[hour] = new long[3];
+            hours[hour][kind]++;
+        }
+
+        // Adds another delta of the same user and day
+        void merge(Delta other) {
+            sent += other.sent;
+            failed += other.failed;
+            unknown += other.unknown;
+            segments += other.segments;
+            earnings += other.earnings;
+            for (int hour = 0; hour < 24; hour++) {
+                long[] counts = other.hours[hour];
+                if (counts == null) continue;
+                if (hours[hour] == null) hours[hour] = new long[3];
+                for (int kind = 0; kind < 3; kind++) {
+                    hours[hour][kind] += counts[kind];
+                }
+            }
+        }
+
+        /** The merge-set that adds this delta to the day's document. */
+        public Map<String, Object> toUpdate() {
+            Map<String, Object> update = new HashMap<>();
+            update.put("userId", userId);
+            update.put("day", day);
+            update.put(FIELD_DAY_START, dayStart);
+            if (sent > 0) update.put(FIELD_SENT, FieldValue.increment(sent));
+            if (failed > 0) update.put(FIELD_FAILED, FieldValue.increment(failed));
+            if (unknown > 0) update.put(FIELD_UNKNOWN, FieldValue.increment(unknown));
+            if (segments > 0) update.put(FIELD_SEGMENTS, FieldValue.increment(segments));
+            if (earnings > 0) update.put(FIELD_EARNINGS, FieldValue.increment(earnings));
+
+            Map<String, Object> byHour = new HashMap<>();
+            for (int hour = 0; hour < 24; hour++) {
+                long[] counts = hours[hour];
+                if (counts == null) continue;
+                Map<String, Object> bucket = new HashMap<>();
+                if (counts[0] > 0) bucket.put(FIELD_SENT, FieldValue.increment(counts[0]));
+                if (counts[1] > 0) bucket.put(FIELD_FAILED, FieldValue.increment(counts[1]));
+                if (counts[2] > 0) bucket.put(FIELD_UNKNOWN, FieldValue.increment(counts[2]));
+                byHour.put(String.format(Locale.US, "%02d", hour), bucket);
+            }
+            if (!byHour.isEmpty()) update.put(FIELD_HOURS, byHour);
+            return update;
+        }
+    }
+
+    private DailyRollup() {
+    }
+
+    /**
+     * Adds one outcome to the delta for its user and day in the map, creating
+     * it if needed.
+     */
+    public static void add(Map<String, Delta> deltas, String userId, String status, int segments, double earnings,
+                           long timestamp) {
+        long dayStart = dayStartOf(timestamp);
+        String day = dayOf(dayStart);
+        String key = keyOf(userId, day);
+        Delta delta = deltas.get(key);
+        if (delta == null) {
+            delta = new Delta(userId, day, dayStart);
+            deltas.put(key, delta);
+        }
+        delta.add(status, segments, earnings, timestamp);
+    }
+
+    /** Puts back a delta whose write failed, merging it with any newer one for the same user and day. */
+    public static void putBack(Map<String, Delta> deltas, Delta delta) {
+        Delta pending = deltas.get(keyOf(delta.userId, delta.day));
+        if (pending == null) {
+            deltas.put(keyOf(delta.userId, delta.day), delta);
+        } else {
+            pending.merge(delta);
+        }
+    }
+
+    private static String keyOf(String userId, String day) {
+        return userId + "/" + day;
+    }
+
+    public static DocumentReference document(FirebaseFirestore db, String userId, String day) {
+        return db.collection("users").document(userId).collection(COLLECTION).document(day);
+    }
+
+    public static long dayStartOf(long timestamp) {
+        Calendar calendar = Calendar.getInstance(ZONE, Locale.US);
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /** yyyy-MM-dd in India time, the document id. */
+    public static String dayOf(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        format.setTimeZone(ZONE);
+        return format.format(timestamp);
+    }
+}
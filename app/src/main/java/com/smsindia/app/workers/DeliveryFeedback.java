@@ -0,0 +1,84 @@
+package com.smsindia.app.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+import java.util.Locale;
+
+/**
+ * Tells the user how sending is going without a toast per message. Outcomes
+ * are counted as they settle, from any thread, and at most one summary toast
+ * per {@link #SUMMARY_INTERVAL_MS} reports everything settled since the
+ * last one.
+ */
+public class DeliveryFeedback {
+
+    public static final long SUMMARY_INTERVAL_MS = 5000;
+
+    private static DeliveryFeedback instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Since the last summary, guarded by this
+    private int sent = 0;
+    private int failed = 0;
+    private double credited = 0;
+    private boolean scheduled = false;
+
+    private DeliveryFeedback(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized DeliveryFeedback getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeliveryFeedback(context);
+        }
+        return instance;
+    }
+
+    public synchronized void onSent(double credit) {
+        sent++;
+        credited += credit;
+        schedule();
+    }
+
+    public synchronized void onFailed() {
+        failed++;
+        schedule();
+    }
+
+    // The first outcome after a summary starts the next interval
+    private void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        mainHandler.postDelayed(this::showSummary, SUMMARY_INTERVAL_MS);
+    }
+
+    private void showSummary() {
+        String text;
+        synchronized (this) {
+            scheduled = false;
+            if (sent == 0 && failed == 0) return;
+            text = summary(sent, failed, credited);
+            sent = 0;
+            failed = 0;
+            credited = 0;
+        }
+        Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+    }
+
+    private static String summary(int sent, int failed, double credited) {
+        StringBuilder sb = new StringBuilder();
+        if (sent > 0) {
+            sb.append(String.format(Locale.US, "%d SMS sent. ₹%.2f credited!", sent, credited));
+        }
+        if (failed > 0) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(failed).append(" SMS failed.");
+        }
+        return sb.toString();
+    }
+}
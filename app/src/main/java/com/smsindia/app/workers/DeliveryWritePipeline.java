@@ -0,0 +1,415 @@
+package com.smsindia.app.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import com.smsindia.dispatch.DispatchMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind pipeline for the Firestore mutations that follow a delivery
+ * result: credits, sms_tasks deletes, sent_logs entries and the
+ * {@link DailyRollup} increments that summarize those entries, plus the
+ * sentBy/sentAt marks that keep a sent task from being claimed again.
+ *
+ * Mutations are buffered and committed either when the buffer fills up or
+ * every {@link #FLUSH_INTERVAL_MS}. Sent tasks are settled through
+ * {@link CreditLedger} in transactions of at most
+ * {@link #MAX_CREDITS_PER_TRANSACTION} tasks, each crediting, deleting and
+ * logging its tasks at once and only if they were not credited before.
+ * Everything else goes out as WriteBatch commits of at most
+ * {@link #MAX_BATCH_OPS} operations, with the rollup increments merged into
+ * one write per user and day. Sent marks go out first, one update per task,
+ * and are dropped for a task that settles before they are flushed.
+ *
+ * Whatever a failed commit carried is put back for a later flush, and
+ * flushing backs off, doubling from {@link #FLUSH_INTERVAL_MS} up to
+ * {@link #MAX_BACKOFF_MS}, until a commit succeeds again. Commit latencies
+ * and sizes go to {@link DispatchMetrics}.
+ */
+public class DeliveryWritePipeline {
+
+    private static final String TAG = "DeliveryWritePipeline";
+
+    public static final int MAX_BATCH_OPS = 500; // Firestore's per-batch limit
+    // Each credit costs one ledger read, and a transaction's reads are sequential round trips
+    public static final int MAX_CREDITS_PER_TRANSACTION = 10;
+    public static final long FLUSH_INTERVAL_MS = 2000;
+    public static final long MAX_BACKOFF_MS = 60000;
+    public static final double CREDIT_PER_SMS = 0.16; // per task sent, however many segments it took
+
+    private static DeliveryWritePipeline instance;
+
+    /** Told which sms_tasks deletes (i.e. settled tasks) have been committed. */
+    public interface CommitListener {
+        void onTasksCommitted(List<String> taskIds);
+    }
+
+    private final FirebaseFirestore db;
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // A sent task: its credit and its sent_logs entry, committed together with its delete
+    private static class Settlement {
+        final CreditLedger.Credit credit;
+        final Map<String, Object> log;
+
+        Settlement(CreditLedger.Credit credit, Map<String, Object> log) {
+            this.credit = credit;
+            this.log = log;
+        }
+    }
+
+    // Pending mutations, guarded by this
+    private final Map<String, Map<String, Object>> sentMarks = new LinkedHashMap<>(); // by task id
+    private final Map<String, Settlement> settlements = new LinkedHashMap<>(); // by task id
+    private final Set<String> taskDeletes = new LinkedHashSet<>();
+    private final List<Map<String, Object>> logAdds = new ArrayList<>();
+    private final Map<String, DailyRollup.Delta> rollups = new LinkedHashMap<>(); // by user and day
+
+    private volatile CommitListener commitListener;
+
+    // Backoff after a failed commit, flush thread only
+    private int failedCommits = 0;
+    private long backoffUntil = 0;
+
+    private final AtomicLong committingOps = new AtomicLong(); // handed to commit(), not yet acknowledged
+
+    private DeliveryWritePipeline(FirebaseFirestore db) {
+        this.db = db;
+        flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized DeliveryWritePipeline getInstance() {
+        if (instance == null) {
+            instance = new DeliveryWritePipeline(FirebaseFirestore.getInstance());
+        }
+        return instance;
+    }
+
+    public void setCommitListener(CommitListener listener) {
+        this.commitListener = listener;
+    }
+
+    /**
+     * Queues every write that settles a task: the credit (if sent), the
+     * sms_tasks delete and the sent_logs entry. Queuing the
+     * same sent task twice credits it once.
+     */
+    public synchronized void enqueueOutcome(String userId, String docId, String phone, String status, int segments,
+                                            long timestamp) {
+        Map<String, Object> log = null;
+        if (userId != null && phone != null) {
+            log = new HashMap<>();
+            log.put("userId", userId);
+            log.put("phone", phone);
+            log.put("timestamp", timestamp);
+            log.put("status", status);
+            log.put("segments", segments);
+        }
+
+        if (docId != null) {
+            sentMarks.remove(docId); // settling deletes the task anyway
+        }
+        if ("sent".equals(status) && userId != null && !userId.isEmpty() && docId != null) {
+            if (!settlements.containsKey(docId)) {
+                CreditLedger.Credit credit = new CreditLedger.Credit(userId, docId, CREDIT_PER_SMS, segments, timestamp);
+                settlements.put(docId, new Settlement(credit, log));
+                onEnqueued();
+            }
+            return;
+        }
+
+        if (docId != null) {
+            deleteTask(docId);
+        }
+        if (log != null) {
+            DailyRollup.add(rollups, userId, status, segments, 0, timestamp);
+            addLog(log);
+        }
+    }
+
+    /**
+     * Stamps sentBy/sentAt on a task the radio has accepted, so that no
+     * device claims it again while its delivery report is outstanding.
+     * Nothing is written if the task settles first.
+     */
+    public synchronized void markSent(String docId, String deviceId, long sentAt) {
+        if (settlements.containsKey(docId) || taskDeletes.contains(docId)) return;
+        Map<String, Object> mark = new HashMap<>();
+        mark.put(TaskLeaser.FIELD_SENT_BY, deviceId);
+        mark.put(TaskLeaser.FIELD_SENT_AT, sentAt);
+        sentMarks.put(docId, mark);
+        onEnqueued();
+    }
+
+    /**
+     * Logs a send whose delivery report never arrived. The task document is
+     * left alone for reconciliation: it was marked sent, so it is not claimed
+     * again.
+     */
+    public synchronized void logUnknown(String userId, String docId, String phone, long sentAt) {
+        if (userId == null || phone == null) return;
+        Map<String, Object> log = new HashMap<>();
+        log.put("userId", userId);
+        log.put("taskId", docId);
+        log.put("phone", phone);
+        log.put("timestamp", sentAt);
+        log.put("status", "unknown");
+        DailyRollup.add(rollups, userId, "unknown", 1, 0, sentAt);
+        addLog(log);
+    }
+
+    public synchronized void deleteTask(String docId) {
+        sentMarks.remove(docId);
+        taskDeletes.add(docId);
+        onEnqueued();
+    }
+
+    public synchronized void addLog(Map<String, Object> log) {
+        logAdds.add(log);
+        onEnqueued();
+    }
+
+    /** Number of operations waiting for the next flush. */
+    public synchronized int getPendingOps() {
+        return sentMarks.size() + settlements.size() + taskDeletes.size() + logAdds.size() + rollups.size();
+    }
+
+    /** Pending plus committing operations: everything not yet acknowledged by Firestore. */
+    public long getBacklog() {
+        return getPendingOps() + committingOps.get();
+    }
+
+    /** Requests an immediate flush, e.g. before the service shuts down. */
+    public void flushNow() {
+        flushExecutor.execute(this::flush);
+    }
+
+    // Caller holds the lock
+    private void onEnqueued() {
+        int pending = getPendingOps();
+        DispatchMetrics.setWriteBacklog(pending + committingOps.get());
+        if (pending >= MAX_BATCH_OPS) {
+            flushNow();
+        }
+    }
+
+    private void flush() {
+        if (SystemClock.elapsedRealtime() < backoffUntil) return;
+
+        Map<String, Map<String, Object>> marks;
+        synchronized (this) {
+            marks = new LinkedHashMap<>(sentMarks);
+            sentMarks.clear();
+        }
+        for (Map.Entry<String, Map<String, Object>> mark : marks.entrySet()) {
+            commitMark(mark.getKey(), mark.getValue());
+        }
+
+        while (true) {
+            List<Settlement> chunk;
+            synchronized (this) {
+                chunk = drainSettlements();
+            }
+            if (chunk.isEmpty()) break;
+            committingOps.addAndGet(chunk.size());
+            settle(chunk);
+        }
+
+        while (true) {
+            WriteBatch batch = db.batch();
+            List<String> deletedTasks = new ArrayList<>();
+            List<Map<String, Object>> logs = new ArrayList<>();
+            List<DailyRollup.Delta> days = new ArrayList<>();
+            int ops;
+            synchronized (this) {
+                ops = drainInto(batch, deletedTasks, logs, days);
+            }
+            if (ops == 0) return;
+            committingOps.addAndGet(ops);
+            commit(batch, ops, deletedTasks, logs, days);
+        }
+    }
+
+    // Caller holds the lock
+    private List<Settlement> drainSettlements() {
+        List<Settlement> chunk = new ArrayList<>(Math.min(settlements.size(), MAX_CREDITS_PER_TRANSACTION));
+        Iterator<Settlement> pending = settlements.values().iterator();
+        while (pending.hasNext() && chunk.size() < MAX_CREDITS_PER_TRANSACTION) {
+            chunk.add(pending.next());
+            pending.remove();
+        }
+        return chunk;
+    }
+
+    // Credits, deletes and logs sent tasks in one transaction; a task credited before is only deleted
+    private void settle(List<Settlement> chunk) {
+        final long started = SystemClock.elapsedRealtime();
+        List<CreditLedger.Credit> credits = new ArrayList<>(chunk.size());
+        List<String> taskIds = new ArrayList<>(chunk.size());
+        for (Settlement settlement : chunk) {
+            credits.add(settlement.credit);
+            taskIds.add(settlement.credit.taskId);
+        }
+
+        db.runTransaction(transaction -> {
+            List<CreditLedger.Credit> applied = CreditLedger.apply(db, transaction, credits);
+            Set<String> appliedIds = new HashSet<>();
+            for (CreditLedger.Credit credit : applied) {
+                appliedIds.add(credit.taskId);
+            }
+            Map<String, DailyRollup.Delta> days = new HashMap<>();
+            for (Settlement settlement : chunk) {
+                CreditLedger.Credit credit = settlement.credit;
+                transaction.delete(db.collection("sms_tasks").document(credit.taskId));
+                if (settlement.log != null && appliedIds.contains(credit.taskId)) {
+                    transaction.set(db.collection("sent_logs").document(), settlement.log);
+                    DailyRollup.add(days, credit.userId, "sent", credit.segments, credit.amount, credit.timestamp);
+                }
+            }
+            for (DailyRollup.Delta day : days.values()) {
+                transaction.set(DailyRollup.document(db, day.userId, day.day), day.toUpdate(), SetOptions.merge());
+            }
+            return applied;
+        })
+                .addOnCompleteListener(flushExecutor, task ->
+                        DispatchMetrics.setWriteBacklog(getPendingOps() + committingOps.addAndGet(-chunk.size())))
+                .addOnSuccessListener(flushExecutor, applied -> {
+                    onCommitted(SystemClock.elapsedRealtime() - started, chunk.size());
+                    CreditLedger.onCommitted(applied);
+                    if (applied.size() < chunk.size()) {
+                        Log.d(TAG, (chunk.size() - applied.size()) + " tasks were already credited");
+                    }
+                    CommitListener listener = commitListener;
+                    if (listener != null) {
+                        listener.onTasksCommitted(taskIds);
+                    }
+                })
+                .addOnFailureListener(flushExecutor, e -> {
+                    // Safe to retry as is: the ledger keeps it from crediting twice
+                    Log.e(TAG, "Failed to settle " + chunk.size() + " sent tasks, retrying later", e);
+                    onCommitFailed();
+                    synchronized (this) {
+                        for (Settlement settlement : chunk) {
+                            settlements.putIfAbsent(settlement.credit.taskId, settlement);
+                        }
+                    }
+                });
+    }
+
+    // One update per task, not a batch: a task settled meanwhile fails only its own update
+    private void commitMark(String docId, Map<String, Object> mark) {
+        committingOps.incrementAndGet();
+        db.collection("sms_tasks").document(docId).update(mark)
+                .addOnCompleteListener(flushExecutor, task ->
+                        DispatchMetrics.setWriteBacklog(getPendingOps() + committingOps.decrementAndGet()))
+                .addOnFailureListener(flushExecutor, e -> {
+                    if (e instanceof FirebaseFirestoreException && ((FirebaseFirestoreException) e).getCode()
+                            == FirebaseFirestoreException.Code.NOT_FOUND) {
+                        return; // settled and deleted already
+                    }
+                    Log.e(TAG, "Failed to mark " + docId + " sent, retrying next flush", e);
+                    synchronized (this) {
+                        if (!settlements.containsKey(docId) && !taskDeletes.contains(docId)) {
+                            sentMarks.putIfAbsent(docId, mark);
+                        }
+                    }
+                });
+    }
+
+    // Moves up to MAX_BATCH_OPS pending mutations into the batch, noting them so a failed commit can put them back;
+    // caller holds the lock
+    private int drainInto(WriteBatch batch, List<String> deletedTasks, List<Map<String, Object>> logs,
+                          List<DailyRollup.Delta> days) {
+        int ops = 0;
+
+        Iterator<String> deletes = taskDeletes.iterator();
+        while (deletes.hasNext() && ops < MAX_BATCH_OPS) {
+            String docId = deletes.next();
+            batch.delete(db.collection("sms_tasks").document(docId));
+            deletedTasks.add(docId);
+            deletes.remove();
+            ops++;
+        }
+
+        List<Map<String, Object>> head = logAdds.subList(0, Math.min(logAdds.size(), MAX_BATCH_OPS - ops));
+        for (Map<String, Object> log : head) {
+            batch.set(db.collection("sent_logs").document(), log);
+        }
+        logs.addAll(head);
+        ops += head.size();
+        head.clear();
+
+        Iterator<DailyRollup.Delta> pending = rollups.values().iterator();
+        while (pending.hasNext() && ops < MAX_BATCH_OPS) {
+            DailyRollup.Delta day = pending.next();
+            batch.set(DailyRollup.document(db, day.userId, day.day), day.toUpdate(), SetOptions.merge());
+            days.add(day);
+            pending.remove();
+            ops++;
+        }
+
+        return ops;
+    }
+
+    private void commit(WriteBatch batch, int ops, List<String> deletedTasks, List<Map<String, Object>> logs,
+                        List<DailyRollup.Delta> days) {
+        final long started = SystemClock.elapsedRealtime();
+        batch.commit()
+                .addOnCompleteListener(flushExecutor, task ->
+                        DispatchMetrics.setWriteBacklog(getPendingOps() + committingOps.addAndGet(-ops)))
+                .addOnSuccessListener(flushExecutor, unused -> {
+                    long latencyMs = SystemClock.elapsedRealtime() - started;
+                    onCommitted(latencyMs, ops);
+                    Log.d(TAG, "Flushed " + ops + " ops in " + latencyMs + " ms");
+                    CommitListener listener = commitListener;
+                    if (listener != null && !deletedTasks.isEmpty()) {
+                        listener.onTasksCommitted(deletedTasks);
+                    }
+                })
+                .addOnFailureListener(flushExecutor, e -> {
+                    // Deletes and increments are safe to repeat; a log whose batch failed was never written
+                    Log.e(TAG, "Failed to commit batch of " + ops + " ops, retrying later", e);
+                    onCommitFailed();
+                    synchronized (this) {
+                        taskDeletes.addAll(deletedTasks);
+                        logAdds.addAll(0, logs);
+                        for (DailyRollup.Delta day : days) {
+                            DailyRollup.putBack(rollups, day);
+                        }
+                    }
+                });
+    }
+
+    // Flush thread only
+    private void onCommitted(long latencyMs, int ops) {
+        DispatchMetrics.recordFlush(latencyMs, ops);
+        failedCommits = 0;
+        backoffUntil = 0;
+    }
+
+    // Flush thread only
+    private void onCommitFailed() {
+        DispatchMetrics.recordFlushFailure();
+        failedCommits++;
+        long backoffMs = Math.min(MAX_BACKOFF_MS, FLUSH_INTERVAL_MS << Math.min(failedCommits - 1, 16));
+        backoffUntil = SystemClock.elapsedRealtime() + backoffMs;
+    }
+}
@@ -0,0 +1,282 @@
+package com.smsindia.app.services;
+
+import android.util.Log;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.app.utils.OutboxJournal;
+import com.smsindia.dispatch.SmsTask;
+import com.smsindia.dispatch.TaskStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link TaskStore} over the sms_tasks collection. Candidates come from the
+ * snapshot-fed {@link TaskFeed} (streaming mode) or from {@link TaskPager}
+ * passes every {@code passIntervalMs} (polling and push modes), and are
+ * leased through {@link TaskLeaser}.
+ *
+ * A push message can {@link #wake} the store: tasks it names are leased
+ * directly by id ahead of everything else, and an idle polling store starts
+ * its next pass at once. That lets push mode poll only rarely.
+ *
+ * A polling pass reads the most urgent tasks ({@link TaskPager#urgentPage})
+ * before its first page and again every {@link #URGENT_CHECK_MS} while it
+ * runs, so an urgent task waits for at most that long behind a backlog.
+ */
+public class FirestoreTaskStore implements TaskStore {
+
+    private static final String TAG = "FirestoreTaskStore";
+    public static final long PASS_INTERVAL_MS = 10000;
+    private static final long URGENT_CHECK_MS = 10000;
+    // A task must reach the radio and have its sent mark flushed before the lease runs out
+    private static final long SEND_MARGIN_MS = 30000;
+
+    // Optional sms_tasks fields
+    public static final String FIELD_PRIORITY = "priority";
+    public static final String FIELD_EXPIRES_AT = "expiresAt";
+
+    private final TaskLeaser leaser;
+    private final OutboxJournal journal;
+    private final String userId;
+    private final TaskFeed feed;   // null in polling mode
+    private final TaskPager pager; // null in streaming mode
+    private final long passIntervalMs;
+
+    // Hinted by push messages, guarded by itself
+    private final List<String> pushedIds = new ArrayList<>();
+    private boolean woken = false;
+
+    // Polling pass state, only touched by the dispatcher's feeder thread
+    private boolean passStarted = false;
+    private List<DocumentSnapshot> page = Collections.emptyList();
+    private int pageOffset = 0;
+    private int passSeen = 0;
+    private List<DocumentSnapshot> urgent = Collections.emptyList();
+    private int urgentOffset = 0;
+    private long urgentCheckedAt = 0;
+    private final Set<String> urgentSeen = new HashSet<>(); // this pass; skipped when the pages reach them
+
+    public FirestoreTaskStore(FirebaseFirestore db, String deviceId, String userId, OutboxJournal journal,
+                              boolean streaming, long passIntervalMs) {
+        this.leaser = new TaskLeaser(db, deviceId);
+        this.journal = journal;
+        this.userId = userId;
+        this.passIntervalMs = passIntervalMs;
+        if (streaming) {
+            feed = new TaskFeed(db, deviceId);
+            feed.start();
+            pager = null;
+        } else {
+            feed = null;
+            pager = new TaskPager(db);
+        }
+    }
+
+    /**
+     * Wakes an idle store because new tasks are available.
+     *
+     * @param taskIds tasks named by the push message, possibly empty
+     */
+    public void wake(List<String> taskIds) {
+        synchronized (pushedIds) {
+            pushedIds.addAll(taskIds);
+            woken = true;
+            pushedIds.notifyAll();
+        }
+    }
+
+    @Override
+    public List<SmsTask> claim(int max, long timeoutMs) throws Exception {
+        List<String> pushed = takePushedIds(max);
+        if (!pushed.isEmpty()) {
+            long leasedAt = System.currentTimeMillis();
+            return toHeldTasks(leaser.claimIds(pushed), leasedAt);
+        }
+
+        List<DocumentSnapshot> candidates;
+        if (feed != null) {
+            // Streaming mode: block on the snapshot-fed queue and lease as soon as a task lands
+            candidates = feed.drainClaimable(max, timeoutMs);
+        } else {
+            candidates = nextChunk(max, timeoutMs);
+            if (candidates == null) {
+                if (passSeen == 0) {
+                    Log.d(TAG, "No SMS tasks found");
+                }
+                awaitWake(passIntervalMs);
+                return Collections.emptyList();
+            }
+        }
+        if (candidates.isEmpty()) return Collections.emptyList();
+
+        long leasedAt = System.currentTimeMillis(); // no later than the leaser's own clock, so never past the lease
+        return toHeldTasks(leaser.claim(withoutRecentlySent(candidates)), leasedAt);
+    }
+
+    @Override
+    public void release(List<SmsTask> tasks) {
+        List<String> ids = new ArrayList<>(tasks.size());
+        for (SmsTask task : tasks) {
+            ids.add(task.id);
+        }
+        leaser.release(ids);
+    }
+
+    @Override
+    public void discard(SmsTask task) {
+        DeliveryWritePipeline.getInstance().deleteTask(task.id);
+    }
+
+    @Override
+    public void reject(SmsTask task, String reason) {
+        // Deleted and logged with the reason as its status; never credited
+        DeliveryWritePipeline.getInstance().enqueueOutcome(userId, task.id, task.phone, reason, task.segments,
+                System.currentTimeMillis());
+    }
+
+    public void stop() {
+        if (feed != null) {
+            feed.stop();
+        }
+        if (pager != null) {
+            pager.shutdown();
+        }
+    }
+
+    /**
+     * Decodes a task document straight into the dispatch model, without an
+     * intermediate getData() map. expiresAt may be epoch millis or a Timestamp.
+     *
+     * @param leaseExpiresAt when this device's lease on the task runs out
+     */
+    public static SmsTask decode(DocumentSnapshot doc, long leaseExpiresAt) {
+        return new SmsTask(doc.getId(), doc.getString("phone"), doc.getString("message"),
+                priorityOf(doc), expiresAtOf(doc), leaseExpiresAt - SEND_MARGIN_MS);
+    }
+
+    static int priorityOf(DocumentSnapshot doc) {
+        Long priority = doc.getLong(FIELD_PRIORITY);
+        return priority != null ? priority.intValue() : SmsTask.DEFAULT_PRIORITY;
+    }
+
+    static long expiresAtOf(DocumentSnapshot doc) {
+        Object expires = doc.get(FIELD_EXPIRES_AT);
+        if (expires instanceof Number) {
+            return ((Number) expires).longValue();
+        }
+        if (expires instanceof Timestamp) {
+            return ((Timestamp) expires).toDate().getTime();
+        }
+        return SmsTask.NO_DEADLINE;
+    }
+
+    private List<String> takePushedIds(int max) {
+        synchronized (pushedIds) {
+            woken = false;
+            if (pushedIds.isEmpty()) return Collections.emptyList();
+            List<String> fresh = new ArrayList<>(max);
+            while (!pushedIds.isEmpty() && fresh.size() < max) {
+                String taskId = pushedIds.remove(0);
+                if (!journal.wasAttempted(taskId)) {
+                    fresh.add(taskId);
+                }
+            }
+            return fresh;
+        }
+    }
+
+    // Sleeps between polling passes until the interval passes or a push wakes us
+    private void awaitWake(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pushedIds) {
+            while (!woken) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return;
+                pushedIds.wait(remaining);
+            }
+        }
+    }
+
+    // Polling mode: the next lease-sized slice of the current pass, or null once the pass is complete
+    private List<DocumentSnapshot> nextChunk(int max, long timeoutMs) throws Exception {
+        if (!passStarted) {
+            pager.reset();
+            passStarted = true;
+            passSeen = 0;
+            page = Collections.emptyList();
+            pageOffset = 0;
+            urgentSeen.clear();
+            urgentCheckedAt = 0;
+        }
+
+        // Urgent tasks first, whatever page the pass has reached
+        long now = System.currentTimeMillis();
+        if (urgentOffset >= urgent.size() && now - urgentCheckedAt >= URGENT_CHECK_MS) {
+            urgentCheckedAt = now;
+            urgent = pager.urgentPage(timeoutMs);
+            urgentOffset = 0;
+            passSeen += urgent.size();
+            for (DocumentSnapshot task : urgent) {
+                urgentSeen.add(task.getId());
+            }
+        }
+        if (urgentOffset < urgent.size()) {
+            int end = Math.min(urgentOffset + max, urgent.size());
+            List<DocumentSnapshot> chunk = urgent.subList(urgentOffset, end);
+            urgentOffset = end;
+            return chunk;
+        }
+
+        if (pageOffset >= page.size()) {
+            try {
+                page = pager.nextPage(timeoutMs);
+            } catch (Exception e) {
+                passStarted = false; // start over from the head after the error backoff
+                throw e;
+            }
+            pageOffset = 0;
+            passSeen += page.size();
+            if (page.isEmpty()) {
+                passStarted = false;
+                return null;
+            }
+        }
+
+        int end = Math.min(pageOffset + max, page.size());
+        List<DocumentSnapshot> chunk = new ArrayList<>(end - pageOffset);
+        for (DocumentSnapshot task : page.subList(pageOffset, end)) {
+            if (!urgentSeen.contains(task.getId())) {
+                chunk.add(task);
+            }
+        }
+        pageOffset = end;
+        return chunk;
+    }
+
+    // Tasks still awaiting deletion after a send must not be claimed (and sent) again
+    private List<DocumentSnapshot> withoutRecentlySent(List<DocumentSnapshot> tasks) {
+        List<DocumentSnapshot> fresh = new ArrayList<>(tasks.size());
+        for (DocumentSnapshot task : tasks) {
+            if (!journal.wasAttempted(task.getId())) {
+                fresh.add(task);
+            }
+        }
+        return fresh;
+    }
+
+    private List<SmsTask> toHeldTasks(List<DocumentSnapshot> held, long leasedAt) {
+        List<SmsTask> tasks = new ArrayList<>(held.size());
+        for (DocumentSnapshot doc : held) {
+            SmsTask task = decode(doc, leasedAt + TaskLeaser.LEASE_MS);
+            journal.recordClaimed(task.id, task.phone, task.message);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+}
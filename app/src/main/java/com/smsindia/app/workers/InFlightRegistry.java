@@ -0,0 +1,240 @@
+package com.smsindia.app.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.smsindia.dispatch.DispatchMetrics;
+import com.smsindia.dispatch.ResultCodes;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks every message handed to the radio until its delivery report arrives.
+ *
+ * Each part gets a unique, monotonically increasing PendingIntent request
+ * code (persisted in blocks so codes never repeat across restarts), so two
+ * outstanding messages can never overwrite each other's extras. A sweeper
+ * settles sends whose report never came as "unknown", which leaves them for
+ * reconciliation instead of waiting forever.
+ *
+ * The running dispatcher registers a {@link RetryHandler}, through which
+ * SmsDeliveryReceiver hands retryable radio failures back for another attempt.
+ * Entries are keyed by task but belong to one attempt; reports carrying
+ * another attempt's key are ignored.
+ */
+public class InFlightRegistry {
+
+    private static final String TAG = "InFlightRegistry";
+
+    public static final long SEND_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+    private static final long OLDEST_REFRESH_MS = 1000;
+
+    private static final String PREFS_NAME = "SMSINDIA_USER";
+    private static final String PREF_REQUEST_CODE = "nextRequestCode";
+    private static final int REQUEST_CODE_BLOCK = 1000;
+
+    private static InFlightRegistry instance;
+
+    /** Takes a task whose send failed; returns true if it will be retried. */
+    public interface RetryHandler {
+        boolean retryLater(SmsTask task, int resultCode);
+    }
+
+    public static class Entry {
+        public final SmsTask task;
+        public final String docId;
+        public final String attemptKey;
+        public final String userId;
+        public final String phone;
+        public final int subscriptionId;
+        public final int partCount;
+        public final long queuedAt;
+        public final long sentAt; // handed to SmsManager
+
+        private final AtomicInteger partsSent = new AtomicInteger();
+        private final AtomicInteger partsFailed = new AtomicInteger();
+        private volatile int firstFailure = ResultCodes.RESULT_OK;
+        private volatile long radioSentAt = 0; // every part accepted by the radio
+
+        Entry(SmsTask task, String userId, int subscriptionId, int partCount, long queuedAt, long sentAt) {
+            this.task = task;
+            this.docId = task.id;
+            this.attemptKey = task.attemptKey();
+            this.userId = userId;
+            this.phone = task.phone;
+            this.subscriptionId = subscriptionId;
+            this.partCount = partCount;
+            this.queuedAt = queuedAt;
+            this.sentAt = sentAt;
+        }
+
+        public long getRadioSentAt() {
+            return radioSentAt;
+        }
+
+        /** True once the radio has accepted every part. */
+        public boolean isAccepted() {
+            return partsSent.get() == partCount;
+        }
+
+        /** Parts the radio accepted; once any did, the message must not be sent again. */
+        public int getPartsSent() {
+            return partsSent.get();
+        }
+
+        /** The result code of the first refused part, RESULT_OK if none was refused. */
+        public int getFirstFailure() {
+            return firstFailure;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Map<String, Entry> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+    private volatile RetryHandler retryHandler;
+    private volatile long oldestSentAt = 0; // refreshed every OLDEST_REFRESH_MS, 0 if none
+
+    private int nextRequestCode;  // guarded by this
+    private int reservedUntil;    // codes below this are persisted as used
+
+    private InFlightRegistry(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        nextRequestCode = prefs.getInt(PREF_REQUEST_CODE, 1);
+        reserveBlock();
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        sweeper.scheduleWithFixedDelay(this::refreshOldest, OLDEST_REFRESH_MS, OLDEST_REFRESH_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized InFlightRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new InFlightRegistry(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a message about to be sent.
+     *
+     * @return 2 * partCount fresh request codes: the delivery intents' codes, then the sent intents'
+     */
+    public int[] register(SmsTask task, String userId, int subscriptionId, int partCount, long queuedAt) {
+        int[] codes = new int[2 * partCount];
+        synchronized (this) {
+            for (int i = 0; i < codes.length; i++) {
+                if (nextRequestCode >= reservedUntil) {
+                    reserveBlock();
+                }
+                codes[i] = nextRequestCode++;
+            }
+        }
+        inFlight.put(task.id, new Entry(task, userId, subscriptionId, partCount, queuedAt, System.currentTimeMillis()));
+        DispatchMetrics.setInFlight(inFlight.size());
+        return codes;
+    }
+
+    /**
+     * Records the radio's sent result for one part of an attempt. Call it
+     * from one thread.
+     *
+     * @return the entry once every part has reported, otherwise null (also for an unknown or replaced attempt)
+     */
+    public Entry onPartResult(String docId, String attemptKey, int resultCode, long now) {
+        Entry entry = inFlight.get(docId);
+        if (entry == null || !entry.attemptKey.equals(attemptKey)) return null;
+        if (resultCode == ResultCodes.RESULT_OK) {
+            entry.partsSent.incrementAndGet();
+        } else if (entry.partsFailed.incrementAndGet() == 1) {
+            entry.firstFailure = resultCode;
+        }
+        if (entry.partsSent.get() + entry.partsFailed.get() != entry.partCount) return null;
+        if (entry.isAccepted()) {
+            entry.radioSentAt = now;
+        }
+        return entry;
+    }
+
+    /** Removes a settled message; returns its entry, or null if it was unknown or timed out. */
+    public Entry complete(String docId) {
+        Entry entry = inFlight.remove(docId);
+        DispatchMetrics.setInFlight(inFlight.size());
+        return entry;
+    }
+
+    /** Like {@link #complete(String)}, but leaves a later attempt of the same task in flight. */
+    public Entry complete(String docId, String attemptKey) {
+        Entry entry = inFlight.get(docId);
+        if (entry == null || !entry.attemptKey.equals(attemptKey) || !inFlight.remove(docId, entry)) return null;
+        DispatchMetrics.setInFlight(inFlight.size());
+        return entry;
+    }
+
+    /** Set while a dispatcher is running; null drops retries, so failures settle as before. */
+    public void setRetryHandler(RetryHandler handler) {
+        this.retryHandler = handler;
+    }
+
+    /**
+     * Offers a completed entry whose send failed for another attempt.
+     *
+     * @return true if it will be retried, so the task must not be settled
+     */
+    public boolean retryLater(Entry entry, int resultCode) {
+        RetryHandler handler = retryHandler;
+        return handler != null && handler.retryLater(entry.task, resultCode);
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /** Age of the oldest outstanding send as of the last refresh (at most a second old), 0 if none. */
+    public long getOldestAgeMs() {
+        long oldest = oldestSentAt;
+        return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    // One scan a second rather than one per send or report; a stuck report shows as a growing age
+    private void refreshOldest() {
+        long oldest = 0;
+        for (Entry entry : inFlight.values()) {
+            if (oldest == 0 || entry.sentAt < oldest) oldest = entry.sentAt;
+        }
+        oldestSentAt = oldest;
+        DispatchMetrics.setOldestInFlight(oldest);
+    }
+
+    // Caller holds the lock
+    private void reserveBlock() {
+        if (nextRequestCode <= 0 || nextRequestCode > Integer.MAX_VALUE - REQUEST_CODE_BLOCK) {
+            nextRequestCode = 1; // wrapped after ~2 billion sends
+        }
+        reservedUntil = nextRequestCode + REQUEST_CODE_BLOCK;
+        prefs.edit().putInt(PREF_REQUEST_CODE, reservedUntil).apply();
+    }
+
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - SEND_TIMEOUT_MS;
+        DeliveryWritePipeline writes = DeliveryWritePipeline.getInstance();
+        Iterator<Entry> it = inFlight.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.sentAt >= cutoff) continue;
+            it.remove();
+
+            // No report: log it as unknown and leave the task document for reconciliation/retry
+            Log.w(TAG, "No delivery report for " + entry.docId + " after " + SEND_TIMEOUT_MS + " ms");
+            writes.logUnknown(entry.userId, entry.docId, entry.phone, entry.sentAt);
+        }
+        DispatchMetrics.setInFlight(inFlight.size());
+    }
+}
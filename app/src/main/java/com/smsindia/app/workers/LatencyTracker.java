@@ -0,0 +1,81 @@
+package com.smsindia.app.services;
+
+import android.util.Log;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.smsindia.dispatch.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-SIM end-to-end latency: queued → sent (radio accepted the message) and
+ * sent → delivered (the network reported delivery). Samples go into
+ * {@link LatencyHistogram}s and are uploaded periodically as one compact
+ * aggregate document per SIM instead of per-message documents.
+ */
+public class LatencyTracker {
+
+    private static final String TAG = "LatencyTracker";
+    public static final long UPLOAD_INTERVAL_MS = 15 * 60 * 1000;
+
+    private static final Map<Integer, SimLatency> sims = new ConcurrentHashMap<>();
+    private static volatile long windowStart = System.currentTimeMillis();
+
+    public static class SimLatency {
+        public final LatencyHistogram queuedToSent = new LatencyHistogram();
+        public final LatencyHistogram sentToDelivered = new LatencyHistogram();
+    }
+
+    public static SimLatency forSubscription(int subscriptionId) {
+        return sims.computeIfAbsent(subscriptionId, id -> new SimLatency());
+    }
+
+    public static void recordSent(int subscriptionId, long queuedAt, long sentAt) {
+        if (queuedAt > 0) {
+            forSubscription(subscriptionId).queuedToSent.record(sentAt - queuedAt);
+        }
+    }
+
+    public static void recordDelivered(int subscriptionId, long sentAt, long deliveredAt) {
+        if (sentAt > 0) {
+            forSubscription(subscriptionId).sentToDelivered.record(deliveredAt - sentAt);
+        }
+    }
+
+    /** Uploads one latency_stats document per SIM for the window since the last upload. */
+    public static void uploadAndReset(FirebaseFirestore db, String deviceId, String userId) {
+        long windowEnd = System.currentTimeMillis();
+        long start = windowStart;
+        windowStart = windowEnd;
+
+        for (Map.Entry<Integer, SimLatency> entry : sims.entrySet()) {
+            long[] send = entry.getValue().queuedToSent.snapshotAndReset();
+            long[] delivery = entry.getValue().sentToDelivered.snapshotAndReset();
+            if (LatencyHistogram.count(send) == 0 && LatencyHistogram.count(delivery) == 0) continue;
+
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("deviceId", deviceId);
+            doc.put("userId", userId);
+            doc.put("subId", entry.getKey());
+            doc.put("windowStart", start);
+            doc.put("windowEnd", windowEnd);
+            doc.put("queuedToSent", summarize(send));
+            doc.put("sentToDelivered", summarize(delivery));
+
+            db.collection("latency_stats").add(doc)
+                    .addOnFailureListener(e -> Log.e(TAG, "Failed to upload latency stats", e));
+        }
+    }
+
+    public static Map<String, Object> summarize(long[] snapshot) {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("count", LatencyHistogram.count(snapshot));
+        summary.put("p50", LatencyHistogram.percentile(snapshot, 50));
+        summary.put("p95", LatencyHistogram.percentile(snapshot, 95));
+        summary.put("p99", LatencyHistogram.percentile(snapshot, 99));
+        summary.put("buckets", LatencyHistogram.sparse(snapshot));
+        return summary;
+    }
+}
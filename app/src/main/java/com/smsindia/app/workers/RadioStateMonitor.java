@@ -0,0 +1,88 @@
+package com.smsindia.app.services;
+
+import android.content.Context;
+import android.os.Build;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.smsindia.dispatch.CircuitBreaker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds each SIM's service state into its {@link CircuitBreaker}, so a lane
+ * pauses as soon as its SIM drops off the network and resumes as soon as it
+ * is back, instead of learning it from failed sends.
+ *
+ * Must be used from the main thread: before Android 12 the listeners are
+ * bound to the calling thread's looper.
+ */
+public class RadioStateMonitor {
+
+    private static final String TAG = "RadioStateMonitor";
+
+    private final Context context;
+    private final TelephonyManager telephonyManager;
+    private final List<Runnable> unregisters = new ArrayList<>();
+
+    public RadioStateMonitor(Context context) {
+        this.context = context;
+        this.telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+    }
+
+    public void watch(int subscriptionId) {
+        if (telephonyManager == null) return;
+        TelephonyManager manager = telephonyManager.createForSubscriptionId(subscriptionId);
+        CircuitBreaker breaker = CircuitBreaker.forSubscription(subscriptionId);
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                ServiceStateCallback callback = new ServiceStateCallback(breaker);
+                manager.registerTelephonyCallback(context.getMainExecutor(), callback);
+                unregisters.add(() -> manager.unregisterTelephonyCallback(callback));
+            } else {
+                PhoneStateListener listener = new PhoneStateListener() {
+                    @Override
+                    public void onServiceStateChanged(ServiceState serviceState) {
+                        breaker.onServiceState(isInService(serviceState));
+                    }
+                };
+                manager.listen(listener, PhoneStateListener.LISTEN_SERVICE_STATE);
+                unregisters.add(() -> manager.listen(listener, PhoneStateListener.LISTEN_NONE));
+            }
+        } catch (SecurityException e) {
+            // Without the signal the breaker still trips on failed sends
+            Log.w(TAG, "Cannot watch service state for subId " + subscriptionId, e);
+        }
+    }
+
+    public void stop() {
+        for (Runnable unregister : unregisters) {
+            unregister.run();
+        }
+        unregisters.clear();
+    }
+
+    private static boolean isInService(ServiceState serviceState) {
+        return serviceState != null && serviceState.getState() == ServiceState.STATE_IN_SERVICE;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.S)
+    private static class ServiceStateCallback extends TelephonyCallback implements TelephonyCallback.ServiceStateListener {
+        private final CircuitBreaker breaker;
+
+        ServiceStateCallback(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            breaker.onServiceState(isInService(serviceState));
+        }
+    }
+}
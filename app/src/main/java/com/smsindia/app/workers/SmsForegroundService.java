@@ -18,15 +18,24 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.smsindia.app.MainActivity;
 import com.smsindia.app.R;
-import com.smsindia.app.utils.SmsStorageHelper;
+import com.smsindia.app.service.MyFirebaseMessagingService;
+import com.smsindia.app.utils.OutboxJournal;
+import com.smsindia.dispatch.DispatchLane;
+import com.smsindia.dispatch.DispatchMetrics;
+import com.smsindia.dispatch.Dispatcher;
+import com.smsindia.dispatch.MessageEncoding;
+import com.smsindia.dispatch.SendRateGovernor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class SmsForegroundService extends Service {
 
@@ -34,12 +43,49 @@ public class SmsForegroundService extends Service {
     private static final String CHANNEL_ID = "sms_foreground_service_channel";
     private static final int NOTIFICATION_ID = 1;
 
+    // Dispatch mode setting, stored in the SMSINDIA_USER prefs
+    public static final String PREF_DISPATCH_MODE = "dispatchMode";
+    public static final String MODE_STREAM = "stream";
+    public static final String MODE_POLL = "poll";
+    // Polls rarely and relies on FCM data messages (ACTION_WAKE) to learn about new tasks
+    public static final String MODE_PUSH = "push";
+    private static final long PUSH_PASS_INTERVAL_MS = 15 * 60 * 1000;
+
+    // Send-rate tuning, also stored in the SMSINDIA_USER prefs
+    public static final String PREF_SEND_RATE_PREFIX = "sendRate_"; // + subscription id, learned rate
+    public static final String PREF_MAX_SEND_RATE = "maxSendRate";
+    // Swap curly quotes, dashes etc. for plain ones when that keeps a body in GSM-7
+    public static final String PREF_TRANSLITERATE = "transliterateGsm7";
+
+    // SIM selection passed by SmsServiceHelper; SIM_ALL dispatches on every active SIM
+    public static final String EXTRA_SIM_SLOT = "simSlot";
+    public static final int SIM_ALL = -1;
+
+    // Sent by MyFirebaseMessagingService when the backend has tasks for this device
+    public static final String ACTION_WAKE = "com.smsindia.WAKE_DISPATCH";
+    public static final String EXTRA_TASK_IDS = "taskIds";
+
+    // Whether the user left dispatch on, and on which SIM, so a push can bring it back
+    public static final String PREF_DISPATCH_ACTIVE = "dispatchActive";
+    public static final String PREF_SIM_SLOT = "dispatchSimSlot";
+
     private volatile boolean isRunning = false;
     private Thread workerThread;
 
     private FirebaseFirestore db;
     private Context context;
     private String uid;
+    private String deviceId;
+    private String mode;
+
+    private FirestoreTaskStore taskStore;
+    private SmsManagerSender sender;
+    private Dispatcher dispatcher;
+    private SharedPreferences prefs;
+    private OutboxJournal journal;
+    private InFlightRegistry inFlight;
+    private RadioStateMonitor radioMonitor;
+    private ScheduledExecutorService statsExecutor;
 
     @Override
     public void onCreate() {
@@ -47,8 +93,12 @@ public class SmsForegroundService extends Service {
 
         context = getApplicationContext();
         db = FirebaseFirestore.getInstance();
-        SharedPreferences prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
+        prefs = context.getSharedPreferences("SMSINDIA_USER", Context.MODE_PRIVATE);
         uid = prefs.getString("mobile", "");
+        mode = prefs.getString(PREF_DISPATCH_MODE, MODE_STREAM);
+        deviceId = prefs.getString("deviceId", uid);
+        journal = OutboxJournal.getInstance(context);
+        inFlight = InFlightRegistry.getInstance(context);
 
         createNotificationChannel();
 
@@ -65,91 +115,102 @@ public class SmsForegroundService extends Service {
                 .build();
 
         startForeground(NOTIFICATION_ID, notification);
-
-        isRunning = true;
-
-        workerThread = new Thread(this::runMessageLoop);
-        workerThread.start();
     }
 
-    private void runMessageLoop() {
-        int simSlot = 0; // You can make this configurable
-        SmsManager smsManager = getSmsManagerForSimSlot(simSlot);
-
-        while (isRunning) {
-            try {
-                if (uid == null || uid.isEmpty()) {
-                    Log.e(TAG, "User not logged in, skipping SMS sending");
-                    Thread.sleep(10000);
-                    continue;
-                }
-
-                List<Map<String, Object>> tasks = loadGlobalTasksSync();
-                if (tasks.isEmpty()) {
-                    Log.d(TAG, "No SMS tasks found");
-                    Thread.sleep(10000);
-                    continue;
-                }
-
-                int sentCount = 0;
-                for (Map<String, Object> task : tasks) {
-                    if (!isRunning) break;
-
-                    String phone = (String) task.get("phone");
-                    String msg = (String) task.get("message");
-                    String docId = (String) task.get("id");
-
-                    if (phone == null || msg == null || docId == null) {
-                        Log.e(TAG, "Incomplete SMS task data: phone=" + phone + ", message=" + msg + ", id=" + docId);
-                        continue;
-                    }
-
-                    String cleanPhone = phone.replaceAll("[^0-9+]", "");
-                    if (!cleanPhone.startsWith("+")) {
-                        cleanPhone = "+91" + cleanPhone;
-                    }
+    private void startDispatch(int simSlot) {
+        isRunning = true;
 
-                    Log.d(TAG, "Sending SMS to: " + cleanPhone + " | Message: " + msg);
+        if (uid == null || uid.isEmpty()) {
+            Log.e(TAG, "User not logged in, skipping SMS sending");
+            return;
+        }
 
-                    try {
-                        Intent deliveredIntent = new Intent("com.smsindia.SMS_DELIVERED");
-                        deliveredIntent.putExtra("userId", uid);
-                        deliveredIntent.putExtra("docId", docId);
-                        deliveredIntent.putExtra("phone", cleanPhone);
+        boolean streaming = MODE_STREAM.equals(mode);
+        boolean push = MODE_PUSH.equals(mode);
+        Log.d(TAG, "Dispatch mode: " + (streaming ? MODE_STREAM : push ? MODE_PUSH : MODE_POLL));
+        taskStore = new FirestoreTaskStore(db, deviceId, uid, journal, streaming,
+                push ? PUSH_PASS_INTERVAL_MS : FirestoreTaskStore.PASS_INTERVAL_MS);
+        MessageEncoding.setTransliterate(prefs.getBoolean(PREF_TRANSLITERATE, false));
+        MyFirebaseMessagingService.refreshToken(context);
+        sender = new SmsManagerSender(context, uid, journal, inFlight);
+
+        dispatcher = new Dispatcher(taskStore, sender, createLanes(simSlot), TaskLeaser.MAX_BATCH);
+        dispatcher.setListener((lane, task) -> updateNotification(buildStatusText()));
+        inFlight.setRetryHandler(dispatcher::retryLater);
+
+        radioMonitor = new RadioStateMonitor(context);
+        for (DispatchLane lane : dispatcher.getLanes()) {
+            radioMonitor.watch(lane.subscriptionId);
+        }
 
-                        PendingIntent pi = PendingIntent.getBroadcast(
-                                context,
-                                docId.hashCode(),
-                                deliveredIntent,
-                                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                        );
+        workerThread = new Thread(this::recoverAndDispatch);
+        workerThread.start();
 
-                        smsManager.sendTextMessage(cleanPhone, null, msg, null, pi);
-                        sentCount++;
+        // Latency histograms leave the device as one compact aggregate per SIM per window
+        statsExecutor = Executors.newSingleThreadScheduledExecutor();
+        statsExecutor.scheduleWithFixedDelay(() -> LatencyTracker.uploadAndReset(db, deviceId, uid),
+                LatencyTracker.UPLOAD_INTERVAL_MS, LatencyTracker.UPLOAD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        statsExecutor.scheduleWithFixedDelay(this::exportMetrics,
+                DispatchMetrics.EXPORT_INTERVAL_MS, DispatchMetrics.EXPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-                        SmsStorageHelper.insertSentSms(context, cleanPhone, msg);
+    private void recoverAndDispatch() {
+        // Recover from a crash or restart before sending anything: learn what was already
+        // sent and upload outcomes that never reached Firestore
+        try {
+            DeliveryWritePipeline writes = DeliveryWritePipeline.getInstance();
+            journal.replay((taskId, userId, phone, status, segments, timestamp) ->
+                    writes.enqueueOutcome(userId, taskId, phone, status, segments, timestamp));
+        } catch (InterruptedException e) {
+            return;
+        }
 
-                        updateNotification("Sent " + sentCount + "/" + tasks.size());
+        synchronized (this) {
+            if (isRunning) {
+                for (DispatchLane lane : dispatcher.getLanes()) {
+                    Log.d(TAG, "Starting lane " + lane.getLabel() + " (subId " + lane.subscriptionId + ")");
+                }
+                dispatcher.start();
+            }
+        }
+    }
 
-                        Thread.sleep(1200);
+    private String buildStatusText() {
+        StringBuilder sb = new StringBuilder("Sent ").append(dispatcher.getSentTotal())
+                .append(" (").append(dispatcher.getScheduler().size()).append(" queued, ")
+                .append(inFlight.getInFlightCount()).append(" in flight");
+        long oldestMs = inFlight.getOldestAgeMs();
+        if (oldestMs > 0) sb.append(", oldest ").append(oldestMs / 1000).append(" s");
+        sb.append(')');
+        for (DispatchLane lane : dispatcher.getLanes()) {
+            sb.append(" • ").append(lane.getLabel())
+                    .append(String.format(Locale.US, " %.2f/s", lane.governor.getRate()));
+            if (!lane.isHealthy()) sb.append(" paused");
+        }
+        int retrying = dispatcher.getRetryBacklog();
+        if (retrying > 0) sb.append(" • ").append(retrying).append(" retrying");
+        return sb.toString();
+    }
 
-                    } catch (Exception e) {
-                        Log.e(TAG, "Failed to send SMS to " + cleanPhone, e);
-                        db.collection("sms_tasks").document(docId).delete();
-                    }
-                }
+    // Overwrites this device's device_metrics document with the current snapshot
+    private void exportMetrics() {
+        if (deviceId == null) return;
+        Map<String, Object> doc = DispatchMetrics.snapshot().toMap();
+        doc.put("deviceId", deviceId);
+        doc.put("userId", uid);
+        db.collection("device_metrics").document(deviceId).set(doc)
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to export metrics", e));
+    }
 
-                Thread.sleep(10000); // Wait 10 seconds before checking new tasks
+    private SendRateGovernor loadRateGovernor(int subscriptionId) {
+        SendRateGovernor governor = SendRateGovernor.forSubscription(subscriptionId);
+        governor.setMaxRate(prefs.getFloat(PREF_MAX_SEND_RATE, (float) SendRateGovernor.DEFAULT_MAX_RATE));
+        governor.setRate(prefs.getFloat(PREF_SEND_RATE_PREFIX + subscriptionId, (float) SendRateGovernor.DEFAULT_RATE));
+        return governor;
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Exception in SmsForegroundService loop", e);
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException ie) {
-                    Log.e(TAG, "Worker thread interrupted", ie);
-                }
-            }
-        }
+    private void saveRateGovernor(int subscriptionId, SendRateGovernor governor) {
+        prefs.edit().putFloat(PREF_SEND_RATE_PREFIX + subscriptionId, (float) governor.getRate()).apply();
     }
 
     private void updateNotification(String contentText) {
@@ -171,57 +232,33 @@ public class SmsForegroundService extends Service {
         }
     }
 
-    private SmsManager getSmsManagerForSimSlot(int simSlot) {
+    // One lane per active subscription, or only the requested slot; falls back to the default SIM
+    private List<DispatchLane> createLanes(int simSlot) {
+        List<DispatchLane> result = new ArrayList<>();
         try {
             SubscriptionManager subscriptionManager = (SubscriptionManager) context.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
             if (subscriptionManager != null) {
                 List<SubscriptionInfo> subscriptionInfoList = subscriptionManager.getActiveSubscriptionInfoList();
-                if (subscriptionInfoList != null && subscriptionInfoList.size() > simSlot) {
-                    int subscriptionId = subscriptionInfoList.get(simSlot).getSubscriptionId();
-                    return SmsManager.getSmsManagerForSubscriptionId(subscriptionId);
+                if (subscriptionInfoList != null) {
+                    for (SubscriptionInfo info : subscriptionInfoList) {
+                        if (simSlot != SIM_ALL && info.getSimSlotIndex() != simSlot) continue;
+                        int subscriptionId = info.getSubscriptionId();
+                        sender.addSubscription(subscriptionId, SmsManager.getSmsManagerForSubscriptionId(subscriptionId));
+                        result.add(new DispatchLane(info.getSimSlotIndex(), subscriptionId, loadRateGovernor(subscriptionId)));
+                    }
                 }
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error obtaining SmsManager for SIM slot " + simSlot, e);
-        }
-        return SmsManager.getDefault();
-    }
-
-    private List<Map<String, Object>> loadGlobalTasksSync() throws Exception {
-        final List<Map<String, Object>> tasks = new ArrayList<>();
-        final Object lock = new Object();
-        final Exception[] error = {null};
-
-        db.collection("sms_tasks")
-                .get()
-                .addOnSuccessListener(querySnapshot -> {
-                    for (DocumentSnapshot doc : querySnapshot) {
-                        Map<String, Object> data = doc.getData();
-                        if (data != null) {
-                            data.put("id", doc.getId());
-                            tasks.add(data);
-                        }
-                    }
-                    synchronized (lock) {
-                        lock.notify();
-                    }
-                })
-                .addOnFailureListener(e -> {
-                    error[0] = e;
-                    synchronized (lock) {
-                        lock.notify();
-                    }
-                });
-
-        synchronized (lock) {
-            lock.wait(10000);
+            Log.e(TAG, "Error listing active subscriptions for SIM slot " + simSlot, e);
         }
 
-        if (error[0] != null) {
-            throw error[0];
+        if (result.isEmpty()) {
+            SmsManager smsManager = SmsManager.getDefault();
+            int subscriptionId = smsManager.getSubscriptionId();
+            sender.addSubscription(subscriptionId, smsManager);
+            result.add(new DispatchLane(0, subscriptionId, loadRateGovernor(subscriptionId)));
         }
-
-        return tasks;
+        return result;
     }
 
     private void createNotificationChannel() {
@@ -236,15 +273,47 @@ public class SmsForegroundService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!isRunning) {
+            // A sticky restart has no intent: use every SIM
+            int simSlot = intent != null ? intent.getIntExtra(EXTRA_SIM_SLOT, SIM_ALL) : SIM_ALL;
+            startDispatch(simSlot);
+        }
+        if (intent != null && ACTION_WAKE.equals(intent.getAction()) && taskStore != null) {
+            ArrayList<String> taskIds = intent.getStringArrayListExtra(EXTRA_TASK_IDS);
+            Log.d(TAG, "Woken by push" + (taskIds != null ? " with " + taskIds.size() + " tasks" : ""));
+            taskStore.wake(taskIds != null ? taskIds : new ArrayList<>());
+        }
         return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
-        isRunning = false;
+        synchronized (this) {
+            isRunning = false;
+        }
         if (workerThread != null && workerThread.isAlive()) {
             workerThread.interrupt();
         }
+        if (dispatcher != null) {
+            for (DispatchLane lane : dispatcher.getLanes()) {
+                saveRateGovernor(lane.subscriptionId, lane.governor);
+            }
+            inFlight.setRetryHandler(null);
+            dispatcher.stop(); // hands queued and retrying tasks' leases back
+        }
+        if (radioMonitor != null) {
+            radioMonitor.stop();
+        }
+        DeliveryWritePipeline.getInstance().flushNow();
+        journal.checkpoint();
+        if (statsExecutor != null) {
+            statsExecutor.shutdownNow();
+            LatencyTracker.uploadAndReset(db, deviceId, uid);
+            exportMetrics();
+        }
+        if (taskStore != null) {
+            taskStore.stop();
+        }
         super.onDestroy();
     }
 
@@ -0,0 +1,117 @@
+package com.smsindia.app.services;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import com.smsindia.app.receivers.SmsDeliveryReceiver;
+import com.smsindia.app.utils.OutboxJournal;
+import com.smsindia.app.utils.SmsStorageHelper;
+import com.smsindia.dispatch.DispatchLane;
+import com.smsindia.dispatch.SmsSender;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SmsSender} backed by one SmsManager per SIM subscription. Sent and
+ * delivery results come back to {@link SmsDeliveryReceiver}.
+ */
+public class SmsManagerSender implements SmsSender {
+
+    private static final String TAG = "SmsManagerSender";
+
+    private final Context context;
+    private final String uid;
+    private final OutboxJournal journal;
+    private final InFlightRegistry inFlight;
+    private final Map<Integer, SmsManager> smsManagers = new ConcurrentHashMap<>();
+
+    public SmsManagerSender(Context context, String uid, OutboxJournal journal, InFlightRegistry inFlight) {
+        this.context = context;
+        this.uid = uid;
+        this.journal = journal;
+        this.inFlight = inFlight;
+    }
+
+    public void addSubscription(int subscriptionId, SmsManager smsManager) {
+        smsManagers.put(subscriptionId, smsManager);
+    }
+
+    @Override
+    public int send(DispatchLane lane, SmsTask task, long queuedAt) throws Exception {
+        // Idempotent sends: a task journalled as sent (possibly before a restart) is never re-sent,
+        // and the attempt is on disk before the radio has the message
+        if (!journal.recordAttempt(task.id, task.attemptKey())) {
+            Log.d(TAG, "Task " + task.id + " was already sent or could not be journalled, skipping");
+            return 0;
+        }
+
+        SmsManager smsManager = smsManagers.get(lane.subscriptionId);
+        if (smsManager == null) {
+            throw new IllegalStateException("No SmsManager for subscription " + lane.subscriptionId);
+        }
+
+        String phone = task.phone; // normalized when the task was decoded
+        Log.d(TAG, "Sending SMS via " + lane.getLabel() + " to: " + phone + " | Message: " + task.message);
+
+        // The radio's own split is the segment count everything downstream uses: governor, metrics and logs
+        int partCount;
+        try {
+            ArrayList<String> parts = smsManager.divideMessage(task.message);
+            partCount = parts.size();
+            int[] requestCodes = inFlight.register(task, uid, lane.subscriptionId, partCount, queuedAt);
+
+            // Per part: a sent intent (radio accepted it) and a delivery intent (network delivered it)
+            ArrayList<PendingIntent> deliveryIntents = new ArrayList<>(partCount);
+            ArrayList<PendingIntent> sentIntents = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                deliveryIntents.add(buildResultIntent(SmsDeliveryReceiver.ACTION_SMS_DELIVERED,
+                        requestCodes[i], task.id, task.attemptKey(), phone, lane, i, partCount));
+                sentIntents.add(buildResultIntent(SmsDeliveryReceiver.ACTION_SMS_SENT,
+                        requestCodes[partCount + i], task.id, task.attemptKey(), phone, lane, i, partCount));
+            }
+
+            if (partCount > 1) {
+                smsManager.sendMultipartTextMessage(phone, null, parts, sentIntents, deliveryIntents);
+            } else {
+                smsManager.sendTextMessage(phone, null, task.message, sentIntents.get(0), deliveryIntents.get(0));
+            }
+        } catch (Exception e) {
+            inFlight.complete(task.id);
+            throw e;
+        }
+
+        try {
+            SmsStorageHelper.insertSentSms(context, phone, task.message);
+        } catch (Exception e) {
+            // Already with the radio: a failed local copy must not count as a failed send
+            Log.w(TAG, "Could not store sent SMS locally", e);
+        }
+        return partCount;
+    }
+
+    private PendingIntent buildResultIntent(String action, int requestCode, String docId, String attemptKey, String phone,
+                                            DispatchLane lane, int partIndex, int partCount) {
+        Intent intent = new Intent(action);
+        intent.setClass(context, SmsDeliveryReceiver.class);
+        intent.putExtra("userId", uid);
+        intent.putExtra("docId", docId);
+        intent.putExtra("attemptKey", attemptKey);
+        intent.putExtra("phone", phone);
+        intent.putExtra("subId", lane.subscriptionId);
+        intent.putExtra("partIndex", partIndex);
+        intent.putExtra("partCount", partCount);
+
+        return PendingIntent.getBroadcast(
+                context,
+                requestCode,
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+    }
+}
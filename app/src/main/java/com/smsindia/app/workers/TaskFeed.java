@@ -0,0 +1,274 @@
+package com.smsindia.app.services;
+
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push-based feed of sms_tasks backed by Firestore snapshot listeners.
+ * After the first snapshot only changed documents are applied, so an
+ * idle device costs no reads and a new task is handed to the sender as soon
+ * as a listener sees it.
+ *
+ * The main listener watches a window of {@link #WINDOW_SIZE} tasks in
+ * {@link TaskPager#ORDER_FIELD} order, so memory stays bounded whatever the
+ * backlog size. Tasks leased or sent by any device stay in sms_tasks until
+ * they settle, so a busy fleet can fill the window with tasks nobody here
+ * may claim. When a full window holds nothing claimable the listener moves
+ * on to the window after it. It goes back to the head every
+ * {@link #REWIND_INTERVAL_MS}, so tasks whose lease lapsed behind it are
+ * picked up again (see {@link TaskLeaser}), and when it has reached the end,
+ * at most every {@link #TAIL_REWIND_MS}, since new tasks land anywhere in id
+ * order.
+ *
+ * A second listener watches the {@link #URGENT_WINDOW} most urgent tasks
+ * ({@link TaskPager#urgentQuery}) wherever they sit in id order, so an
+ * urgent task reaches the queue at once instead of after the backlog ahead
+ * of it. Everything both listeners see is handed out most urgent first:
+ * highest priority, then earliest expiresAt, then arrival order.
+ */
+public class TaskFeed {
+
+    private static final String TAG = "TaskFeed";
+    private static final long RESUBSCRIBE_DELAY_MS = 10000;
+    // Taken tasks are paged past, so this only bounds memory and the reads per window move
+    private static final int WINDOW_SIZE = 200;
+    private static final int URGENT_WINDOW = 100;
+    private static final long WINDOW_CHECK_MS = 5000;
+    private static final long REWIND_INTERVAL_MS = TaskLeaser.LEASE_MS;
+    private static final long TAIL_REWIND_MS = 30000;
+
+    private static final Comparator<DocumentSnapshot> URGENCY = (a, b) -> {
+        int byPriority = Integer.compare(FirestoreTaskStore.priorityOf(b), FirestoreTaskStore.priorityOf(a));
+        if (byPriority != 0) return byPriority;
+        return Long.compare(deadlineOf(a), deadlineOf(b));
+    };
+
+    private final FirebaseFirestore db;
+    private final String deviceId;
+    // Tasks waiting to be sent, keyed by docId, in arrival order; decoded only once leased
+    private final LinkedHashMap<String, DocumentSnapshot> pending = new LinkedHashMap<>();
+    // Which listener currently holds each task, guarded by pending; a task may be in both
+    private final Set<String> windowIds = new HashSet<>();
+    private final Set<String> urgentIds = new HashSet<>();
+    private final ScheduledExecutorService listenerExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private ListenerRegistration registration;
+    private ListenerRegistration urgentRegistration;
+    private volatile boolean running = false;
+
+    // Window state, listener thread only
+    private String windowStart;    // startAfter cursor (a document id), null for the head
+    private int windowSize = -1;   // documents in the latest snapshot, -1 until the first one
+    private String windowLast;     // id of its last document
+    private long rewoundAt = 0;
+    private int generation = 0;    // bumped per subscription so a replaced listener's events are dropped
+
+    public TaskFeed(FirebaseFirestore db, String deviceId) {
+        this.db = db;
+        this.deviceId = deviceId;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        rewoundAt = System.currentTimeMillis();
+        listenerExecutor.execute(this::subscribeUrgent);
+        listenerExecutor.execute(this::subscribe);
+        listenerExecutor.scheduleWithFixedDelay(this::checkWindow, WINDOW_CHECK_MS, WINDOW_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void subscribe() {
+        if (!running) return;
+        if (registration != null) {
+            registration.remove();
+        }
+        final int gen = ++generation;
+        windowSize = -1;
+        windowLast = null;
+
+        // A limited listener is a sliding window: as tasks are deleted the next ones enter as ADDED
+        Query window = db.collection("sms_tasks").orderBy(TaskPager.ORDER_FIELD);
+        if (windowStart != null) {
+            window = window.startAfter(windowStart);
+        }
+        registration = window
+                .limit(WINDOW_SIZE)
+                .addSnapshotListener(listenerExecutor, (snapshot, e) -> {
+                    if (gen != generation) return;
+                    if (e != null) {
+                        Log.e(TAG, "Task listener failed, resubscribing", e);
+                        listenerExecutor.schedule(this::subscribe, RESUBSCRIBE_DELAY_MS, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    if (snapshot == null) return;
+
+                    windowSize = snapshot.size();
+                    windowLast = windowSize > 0 ? snapshot.getDocuments().get(windowSize - 1).getId() : null;
+                    apply(snapshot, windowIds, urgentIds);
+                    checkWindow();
+                });
+    }
+
+    private synchronized void subscribeUrgent() {
+        if (!running) return;
+        urgentRegistration = TaskPager.urgentQuery(db, URGENT_WINDOW)
+                .addSnapshotListener(listenerExecutor, (snapshot, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Urgent task listener failed, resubscribing", e);
+                        listenerExecutor.schedule(this::subscribeUrgent, RESUBSCRIBE_DELAY_MS, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    if (snapshot != null) {
+                        apply(snapshot, urgentIds, windowIds);
+                    }
+                });
+    }
+
+    // Applies one listener's changes; a task leaves the feed once neither listener holds it
+    private void apply(QuerySnapshot snapshot, Set<String> members, Set<String> others) {
+        synchronized (pending) {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                DocumentSnapshot doc = change.getDocument();
+                String id = doc.getId();
+                switch (change.getType()) {
+                    case ADDED:
+                    case MODIFIED:
+                        members.add(id);
+                        // Our own lease stamps come back as MODIFIED; those tasks are already ours
+                        if (deviceId.equals(doc.getString(TaskLeaser.FIELD_CLAIMED_BY))) {
+                            pending.remove(id);
+                            break;
+                        }
+                        pending.put(id, doc);
+                        break;
+                    case REMOVED:
+                        members.remove(id);
+                        if (!others.contains(id)) {
+                            pending.remove(id);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            pending.notifyAll();
+        }
+    }
+
+    // Moves the window on, or back to the head, once nothing in it can be claimed; listener thread only
+    private void checkWindow() {
+        if (!running || windowSize < 0 || windowSize == 0 && windowStart == null) return;
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            for (String id : windowIds) {
+                DocumentSnapshot task = pending.get(id);
+                if (task != null && TaskLeaser.isClaimable(task, now)) return;
+            }
+        }
+
+        boolean full = windowSize >= WINDOW_SIZE;
+        long sinceRewind = now - rewoundAt;
+        if (windowStart != null && sinceRewind >= (full ? REWIND_INTERVAL_MS : TAIL_REWIND_MS)) {
+            Log.d(TAG, "Nothing claimable, going back to the head of sms_tasks");
+            windowStart = null;
+            rewoundAt = now;
+        } else if (full) {
+            Log.d(TAG, "Window fully taken, moving past " + windowLast);
+            windowStart = windowLast;
+        } else {
+            return; // at the end and everything is taken: wait for changes
+        }
+        synchronized (pending) {
+            for (String id : windowIds) {
+                if (!urgentIds.contains(id)) {
+                    pending.remove(id);
+                }
+            }
+            windowIds.clear();
+        }
+        subscribe();
+    }
+
+    /**
+     * Blocks until at least one task is free to claim or the timeout expires,
+     * then removes and returns up to {@code max} claimable tasks, most urgent first.
+     *
+     * @return the claimable tasks, empty on timeout
+     */
+    public List<DocumentSnapshot> drainClaimable(int max, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<DocumentSnapshot> claimable = new ArrayList<>();
+        synchronized (pending) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                for (DocumentSnapshot task : pending.values()) {
+                    if (TaskLeaser.isClaimable(task, now)) {
+                        claimable.add(task);
+                    }
+                }
+                if (!claimable.isEmpty()) {
+                    Collections.sort(claimable, URGENCY); // stable: ties keep arrival order
+                    List<DocumentSnapshot> batch = new ArrayList<>(claimable.subList(0, Math.min(max, claimable.size())));
+                    for (DocumentSnapshot task : batch) {
+                        pending.remove(task.getId());
+                    }
+                    return batch;
+                }
+
+                long remaining = deadline - now;
+                if (remaining <= 0) return claimable;
+                // Wake up periodically so that expired foreign leases are picked up
+                pending.wait(Math.min(remaining, 1000));
+            }
+        }
+    }
+
+    private static long deadlineOf(DocumentSnapshot task) {
+        long expiresAt = FirestoreTaskStore.expiresAtOf(task);
+        return expiresAt == SmsTask.NO_DEADLINE ? Long.MAX_VALUE : expiresAt;
+    }
+
+    public int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (registration != null) {
+            registration.remove();
+            registration = null;
+        }
+        if (urgentRegistration != null) {
+            urgentRegistration.remove();
+            urgentRegistration = null;
+        }
+        listenerExecutor.shutdownNow();
+        synchronized (pending) {
+            pending.clear();
+            windowIds.clear();
+            urgentIds.clear();
+            pending.notifyAll();
+        }
+    }
+}
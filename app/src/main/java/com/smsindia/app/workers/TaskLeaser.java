@@ -0,0 +1,141 @@
+package com.smsindia.app.services;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+import com.smsindia.dispatch.DispatchMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Claims sms_tasks for this device so that no two devices send the same task.
+ * A claim stamps claimedBy/leaseExpiresAt on a bounded batch inside one
+ * transaction; a task whose lease has expired is free to be claimed again.
+ *
+ * Once the radio has accepted a task, DeliveryWritePipeline stamps
+ * sentBy/sentAt on it. A sent task stays taken until its delivery report
+ * settles and deletes it, however long that outlives the lease.
+ */
+public class TaskLeaser {
+
+    private static final String TAG = "TaskLeaser";
+
+    public static final String FIELD_CLAIMED_BY = "claimedBy";
+    public static final String FIELD_LEASE_EXPIRES_AT = "leaseExpiresAt";
+    public static final String FIELD_SENT_BY = "sentBy";
+    public static final String FIELD_SENT_AT = "sentAt";
+
+    public static final int MAX_BATCH = 20;
+    public static final long LEASE_MS = 5 * 60 * 1000;
+    private static final long CLAIM_TIMEOUT_MS = 15000;
+
+    private final FirebaseFirestore db;
+    private final String deviceId;
+
+    public TaskLeaser(FirebaseFirestore db, String deviceId) {
+        this.db = db;
+        this.deviceId = deviceId;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * True if the task has not been sent and nobody holds a live lease on it.
+     * A live lease held by this device also counts as taken: the task is
+     * already in our own pipeline.
+     */
+    public static boolean isClaimable(DocumentSnapshot task, long now) {
+        if (task.get(FIELD_SENT_BY) != null) return false;
+        Object claimedBy = task.get(FIELD_CLAIMED_BY);
+        Object expiresAt = task.get(FIELD_LEASE_EXPIRES_AT);
+        if (claimedBy == null || !(expiresAt instanceof Number)) return true;
+        return ((Number) expiresAt).longValue() <= now;
+    }
+
+    /**
+     * Atomically claims up to {@link #MAX_BATCH} of the given candidates.
+     * Must be called off the main thread.
+     *
+     * @return the candidates this device now holds a lease on
+     */
+    public List<DocumentSnapshot> claim(List<DocumentSnapshot> candidates) throws Exception {
+        long now = System.currentTimeMillis();
+        List<DocumentReference> wanted = new ArrayList<>();
+        for (DocumentSnapshot task : candidates) {
+            if (wanted.size() >= MAX_BATCH) break;
+            if (task.exists() && isClaimable(task, now)) {
+                wanted.add(task.getReference());
+            }
+        }
+        return lease(wanted, now);
+    }
+
+    /**
+     * Claims tasks known only by id, e.g. the ones named in a push message.
+     * The transaction reads each document anyway, so nothing is fetched first.
+     *
+     * @return the tasks this device now holds a lease on, as read in the transaction
+     */
+    public List<DocumentSnapshot> claimIds(List<String> taskIds) throws Exception {
+        List<DocumentReference> wanted = new ArrayList<>();
+        for (String taskId : taskIds) {
+            if (wanted.size() >= MAX_BATCH) break;
+            wanted.add(db.collection("sms_tasks").document(taskId));
+        }
+        return lease(wanted, System.currentTimeMillis());
+    }
+
+    private List<DocumentSnapshot> lease(List<DocumentReference> refs, long now) throws Exception {
+        if (refs.isEmpty()) return new ArrayList<>();
+
+        final long expiresAt = now + LEASE_MS;
+        List<DocumentSnapshot> held = Tasks.await(db.runTransaction(transaction -> {
+            List<DocumentSnapshot> snapshots = new ArrayList<>();
+            // Firestore transactions require every read before the first write
+            for (DocumentReference ref : refs) {
+                snapshots.add(transaction.get(ref));
+            }
+
+            List<DocumentSnapshot> claimed = new ArrayList<>();
+            for (int i = 0; i < refs.size(); i++) {
+                DocumentSnapshot snap = snapshots.get(i);
+                if (!snap.exists() || snap.get(FIELD_SENT_BY) != null) continue;
+
+                String holder = snap.getString(FIELD_CLAIMED_BY);
+                Long holderExpiry = snap.getLong(FIELD_LEASE_EXPIRES_AT);
+                if (holder != null && holderExpiry != null && holderExpiry > now) continue;
+
+                transaction.update(refs.get(i),
+                        FIELD_CLAIMED_BY, deviceId,
+                        FIELD_LEASE_EXPIRES_AT, expiresAt);
+                claimed.add(snap);
+            }
+            return claimed;
+        }), CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        DispatchMetrics.recordFetch(System.currentTimeMillis() - now);
+
+        Log.d(TAG, "Claimed " + held.size() + "/" + refs.size() + " tasks");
+        return held;
+    }
+
+    /** Hands unsent tasks back to the pool, e.g. when the service stops mid-batch. */
+    public void release(List<String> taskIds) {
+        if (taskIds.isEmpty()) return;
+        WriteBatch batch = db.batch();
+        for (String taskId : taskIds) {
+            batch.update(db.collection("sms_tasks").document(taskId),
+                    FIELD_CLAIMED_BY, FieldValue.delete(),
+                    FIELD_LEASE_EXPIRES_AT, FieldValue.delete());
+        }
+        batch.commit().addOnFailureListener(e -> Log.e(TAG, "Failed to release leases", e));
+    }
+}
@@ -0,0 +1,164 @@
+package com.smsindia.app.services;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.smsindia.dispatch.DispatchMetrics;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads sms_tasks in bounded pages ordered by {@link #ORDER_FIELD}, using the
+ * last document of each page as the startAfter cursor for the next one.
+ * At most {@link #LOOKAHEAD_PAGES} pages are prefetched, so memory stays flat
+ * however large the backlog grows.
+ *
+ * Pages are ordered by document id rather than by a timestamp field: an
+ * ordered query silently skips documents that lack its field, and producers
+ * write tasks with nothing but phone and message.
+ *
+ * Urgent tasks are read separately through {@link #urgentQuery}, most
+ * urgent first, so they are not stuck behind a bulk backlog that sorts
+ * ahead of them.
+ */
+public class TaskPager {
+
+    public static final FieldPath ORDER_FIELD = FieldPath.documentId();
+    public static final int PAGE_SIZE = 100;
+    private static final int LOOKAHEAD_PAGES = 2;
+
+    private final FirebaseFirestore db;
+    // Page callbacks run here rather than on the main thread
+    private final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+
+    private final ArrayDeque<List<DocumentSnapshot>> buffer = new ArrayDeque<>();
+    private DocumentSnapshot cursor; // last document of the most recently fetched page
+    private boolean exhausted = false;
+    private boolean fetching = false;
+    private Exception error;
+    private int generation = 0; // bumped on reset so late pages from an old pass are dropped
+
+    public TaskPager(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    /**
+     * Tasks above the default priority, highest first. Tasks without a
+     * priority field are bulk and are left out, which is what this wants.
+     */
+    public static Query urgentQuery(FirebaseFirestore db, int limit) {
+        return db.collection("sms_tasks")
+                .whereGreaterThan(FirestoreTaskStore.FIELD_PRIORITY, SmsTask.DEFAULT_PRIORITY)
+                .orderBy(FirestoreTaskStore.FIELD_PRIORITY, Query.Direction.DESCENDING)
+                .limit(limit);
+    }
+
+    /** Reads the {@link #PAGE_SIZE} most urgent tasks, blocking; separate from the paged pass. */
+    public List<DocumentSnapshot> urgentPage(long timeoutMs) throws Exception {
+        long started = System.currentTimeMillis();
+        QuerySnapshot snapshot = Tasks.await(urgentQuery(db, PAGE_SIZE).get(), timeoutMs, TimeUnit.MILLISECONDS);
+        DispatchMetrics.recordFetch(System.currentTimeMillis() - started);
+        return snapshot.getDocuments();
+    }
+
+    /** Starts a new pass from the head of the collection. */
+    public synchronized void reset() {
+        generation++;
+        buffer.clear();
+        cursor = null;
+        exhausted = false;
+        fetching = false;
+        error = null;
+    }
+
+    /**
+     * Returns the next page, blocking until it has been fetched.
+     *
+     * @return the next page of tasks, or an empty list once the pass is complete
+     */
+    public synchronized List<DocumentSnapshot> nextPage(long timeoutMs) throws Exception {
+        prefetch();
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (buffer.isEmpty() && !exhausted && error == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException("Timed out waiting for a page of sms_tasks");
+            }
+            wait(remaining);
+        }
+
+        if (error != null) {
+            Exception e = error;
+            error = null;
+            throw e;
+        }
+        if (buffer.isEmpty()) return Collections.emptyList();
+
+        List<DocumentSnapshot> page = buffer.poll();
+        prefetch();
+        return page;
+    }
+
+    public synchronized void shutdown() {
+        generation++;
+        callbackExecutor.shutdownNow();
+    }
+
+    // Caller holds the lock
+    private void prefetch() {
+        if (fetching || exhausted || error != null || buffer.size() >= LOOKAHEAD_PAGES) return;
+        fetching = true;
+
+        final int gen = generation;
+        final long started = System.currentTimeMillis();
+        Query query = db.collection("sms_tasks")
+                .orderBy(ORDER_FIELD)
+                .limit(PAGE_SIZE);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+
+        query.get()
+                .addOnSuccessListener(callbackExecutor, snapshot -> {
+                    DispatchMetrics.recordFetch(System.currentTimeMillis() - started);
+                    onPage(gen, snapshot);
+                })
+                .addOnFailureListener(callbackExecutor, e -> onError(gen, e));
+    }
+
+    private synchronized void onPage(int gen, QuerySnapshot snapshot) {
+        if (gen != generation) return;
+        fetching = false;
+
+        // Snapshots are kept as-is; only the ones this device leases are decoded
+        List<DocumentSnapshot> page = snapshot.getDocuments();
+        if (!page.isEmpty()) {
+            cursor = page.get(page.size() - 1);
+            buffer.add(page);
+        }
+        if (page.size() < PAGE_SIZE) {
+            exhausted = true;
+        }
+
+        prefetch();
+        notifyAll();
+    }
+
+    private synchronized void onError(int gen, Exception e) {
+        if (gen != generation) return;
+        fetching = false;
+        error = e;
+        notifyAll();
+    }
+}
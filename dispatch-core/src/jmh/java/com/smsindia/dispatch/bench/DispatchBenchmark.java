@@ -0,0 +1,97 @@
+package com.smsindia.dispatch.bench;
+
+import com.smsindia.dispatch.DispatchLane;
+import com.smsindia.dispatch.DispatchScheduler;
+import com.smsindia.dispatch.Dispatcher;
+import com.smsindia.dispatch.SendRateGovernor;
+import com.smsindia.dispatch.SmsSender;
+import com.smsindia.dispatch.SmsTask;
+import com.smsindia.dispatch.TaskStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-task overhead of one lane step (send slot, scheduler pull, validation,
+ * metrics) with a radio that does nothing. Run with
+ * {@code -prof gc} for the allocation rate per dispatched task.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int queued;
+
+    private DispatchLane lane;
+    private Dispatcher dispatcher;
+    private DispatchScheduler scheduler;
+    private final DispatchScheduler.Slot slot = new DispatchScheduler.Slot();
+
+    private static final TaskStore NO_STORE = new TaskStore() {
+        @Override
+        public List<SmsTask> claim(int max, long timeoutMs) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void release(List<SmsTask> tasks) {
+        }
+
+        @Override
+        public void discard(SmsTask task) {
+        }
+
+        @Override
+        public void reject(SmsTask task, String reason) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        SendRateGovernor governor = SendRateGovernor.forSubscription(Integer.MAX_VALUE);
+        governor.setMaxRate(1e12); // never the bottleneck
+        governor.setRate(1e12);
+        lane = new DispatchLane(0, Integer.MAX_VALUE, governor);
+
+        SmsSender sender = (l, task, queuedAt) -> {
+            blackhole.consume(task.phone);
+            return task.segments;
+        };
+        dispatcher = new Dispatcher(NO_STORE, sender, Collections.singletonList(lane), Dispatcher.DEFAULT_BATCH_SIZE);
+
+        scheduler = new DispatchScheduler(queued + 1);
+        for (int i = 0; i < queued; i++) {
+            scheduler.submit(new SmsTask("task-" + i, "+91 98765-" + String.format("%05d", i % 100000),
+                    "Your verification code is " + i), System.currentTimeMillis());
+        }
+    }
+
+    @Benchmark
+    public boolean laneStep() throws InterruptedException {
+        lane.governor.acquire();
+        scheduler.next(0, slot);
+        boolean sent = dispatcher.dispatch(lane, slot.task, slot.queuedAt);
+        scheduler.submit(slot.task, slot.queuedAt); // keep the backlog at a constant depth
+        return sent;
+    }
+}
@@ -0,0 +1,47 @@
+package com.smsindia.dispatch.bench;
+
+import com.smsindia.dispatch.MessageEncoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment analysis of a campaign body: a repeat (cache hit), a first sight
+ * of a GSM-7 body and of one that only stays GSM-7 through transliteration.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageEncodingBenchmark {
+
+    public String plain = "Dear customer, your order #4821 has been shipped and will reach you by Friday. "
+            + "Track it at https://example.in/t/4821 - reply STOP to opt out of updates.";
+    public String typographic = plain.replace(" - ", " \u2013 ").replace("Dear customer,", "\u201CDear customer\u201D,");
+
+    @Benchmark
+    public MessageEncoding.Segmentation cached() {
+        return MessageEncoding.analyze(plain);
+    }
+
+    @Benchmark
+    public MessageEncoding.Segmentation scan() {
+        return MessageEncoding.analyzeUncached(plain, false);
+    }
+
+    @Benchmark
+    public MessageEncoding.Segmentation transliterated() {
+        return MessageEncoding.analyzeUncached(typographic, true);
+    }
+}
@@ -0,0 +1,46 @@
+package com.smsindia.dispatch.bench;
+
+import com.smsindia.dispatch.PhoneNumbers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phone normalization: a repeat recipient (cache hit), a first-time one (the
+ * single-pass scan) and the regex it replaced, for comparison.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhoneNumbersBenchmark {
+
+    public String phone = "+91 98765-43210";
+
+    @Benchmark
+    public String cached() {
+        return PhoneNumbers.normalize(phone);
+    }
+
+    @Benchmark
+    public String scan() {
+        return PhoneNumbers.normalizeUncached(phone);
+    }
+
+    @Benchmark
+    public String regexBaseline() {
+        String clean = phone.replaceAll("[^0-9+]", "");
+        return clean.startsWith("+") ? clean : "+91" + clean;
+    }
+}
@@ -0,0 +1,89 @@
+package com.smsindia.dispatch.bench;
+
+import com.smsindia.dispatch.DispatchScheduler;
+import com.smsindia.dispatch.SmsTask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler cost with a deep backlog: steady-state hand-off at a fixed queue
+ * depth, and filling then draining the whole backlog in lease-sized batches.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SchedulerBenchmark {
+
+    private static final int BATCH = 20;
+
+    @Param({"10000", "100000", "1000000"})
+    public int queued;
+
+    private List<SmsTask> tasks;
+    private DispatchScheduler steady;
+    private final DispatchScheduler.Slot slot = new DispatchScheduler.Slot();
+
+    @Setup(Level.Trial)
+    public void createTasks() {
+        tasks = new ArrayList<>(queued);
+        for (int i = 0; i < queued; i++) {
+            tasks.add(new SmsTask("task-" + i, "98765" + String.format("%05d", i % 100000), "Your code is " + i));
+        }
+        steady = new DispatchScheduler(queued + 1);
+        steady.submitAll(tasks, System.currentTimeMillis());
+    }
+
+    /** A fresh scheduler per fillAndDrain call, kept out of the steady-state benchmark. */
+    @State(Scope.Thread)
+    public static class EmptyScheduler {
+        DispatchScheduler scheduler;
+
+        @Setup(Level.Invocation)
+        public void create(SchedulerBenchmark benchmark) {
+            scheduler = new DispatchScheduler(benchmark.queued);
+        }
+    }
+
+    /** One lane pull plus one feeder push with {@code queued} tasks waiting. */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public SmsTask handOff() throws InterruptedException {
+        steady.next(0, slot);
+        steady.submit(slot.task, slot.queuedAt);
+        return slot.task;
+    }
+
+    /** Submits the whole backlog in lease-sized batches, then pulls every task. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public int fillAndDrain(EmptyScheduler empty) throws InterruptedException {
+        for (int i = 0; i < queued; i += BATCH) {
+            empty.scheduler.submitAll(tasks.subList(i, Math.min(i + BATCH, queued)), i);
+        }
+        int drained = 0;
+        while (empty.scheduler.next(0, slot)) {
+            drained++;
+        }
+        return drained;
+    }
+}
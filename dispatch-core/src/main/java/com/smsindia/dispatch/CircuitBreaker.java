@@ -0,0 +1,188 @@
+package com.smsindia.dispatch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Radio-health circuit breaker for one SIM subscription. While the breaker
+ * is open its lane sends nothing, so tasks wait in the queue instead of
+ * being burnt on a radio that cannot deliver them.
+ *
+ * The breaker opens when telephony reports the SIM out of service, after
+ * {@link #CONSECUTIVE_TRIP} radio failures in a row, or when at least
+ * {@link #FAILURE_RATE_THRESHOLD} of the last {@link #WINDOW} outcomes
+ * failed. After the open period one probe send is let through (half-open):
+ * if it succeeds the breaker closes, otherwise it reopens for twice as long,
+ * up to {@link #MAX_OPEN_MS}. A service-state signal that the radio is back
+ * closes it at once.
+ *
+ * Like {@link SendRateGovernor}, breakers live in a process-wide registry so
+ * that result receivers and telephony callbacks reach the instance the lane
+ * waits on.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger("CircuitBreaker");
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int WINDOW = 20;
+    static final int MIN_SAMPLES = 8;
+    static final int CONSECUTIVE_TRIP = 3;
+    static final double FAILURE_RATE_THRESHOLD = 0.5;
+    static final long BASE_OPEN_MS = 30000;
+    static final long MAX_OPEN_MS = 5 * 60 * 1000;
+    static final long PROBE_TIMEOUT_MS = 60000;
+
+    private static final Map<Integer, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final int subscriptionId;
+    private final boolean[] outcomes = new boolean[WINDOW]; // true = failed, ring of the last WINDOW results
+    private int outcomeCount = 0;
+    private int outcomeIndex = 0;
+    private int failuresInWindow = 0;
+    private int consecutiveFailures = 0;
+
+    private State state = State.CLOSED;
+    private boolean outOfService = false;
+    private long openUntil = 0;
+    private long openMs = BASE_OPEN_MS;
+    private long probeSentAt = 0; // 0 while no probe is outstanding
+
+    private CircuitBreaker(int subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+
+    public static CircuitBreaker forSubscription(int subscriptionId) {
+        return breakers.computeIfAbsent(subscriptionId, CircuitBreaker::new);
+    }
+
+    /**
+     * Blocks while the breaker is open, or while a half-open probe is still
+     * waiting for its result. Returns once the lane may send.
+     */
+    public synchronized void awaitClosed() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            switch (state) {
+                case CLOSED:
+                    return;
+                case OPEN:
+                    if (outOfService) {
+                        wait(); // until the radio reports it is back
+                    } else if (now < openUntil) {
+                        wait(openUntil - now);
+                    } else {
+                        transition(State.HALF_OPEN);
+                    }
+                    break;
+                case HALF_OPEN:
+                    if (probeSentAt == 0) {
+                        probeSentAt = now; // this caller sends the probe
+                        return;
+                    }
+                    if (now - probeSentAt >= PROBE_TIMEOUT_MS) {
+                        close(); // the probe reached the radio and nothing failed
+                        return;
+                    }
+                    wait(PROBE_TIMEOUT_MS - (now - probeSentAt));
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** Feeds a radio result (sent result code) into the breaker. */
+    public synchronized void onResult(int resultCode) {
+        if (resultCode == ResultCodes.RESULT_OK) {
+            onSuccess();
+        } else if (ResultCodes.isRadioFailure(resultCode)) {
+            onFailure();
+        }
+        // Throttling is the rate governor's business, and a bad PDU says nothing about the radio
+    }
+
+    /** A send threw before it reached the radio. */
+    public synchronized void onSendError() {
+        onFailure();
+    }
+
+    /** Service-state signal from telephony: whether the SIM is registered on a network. */
+    public synchronized void onServiceState(boolean inService) {
+        if (inService == !outOfService) return;
+        outOfService = !inService;
+        if (outOfService) {
+            open("out of service");
+        } else {
+            LOG.info("SIM subId " + subscriptionId + " back in service");
+            close();
+        }
+    }
+
+    // Caller holds the lock
+    private void onSuccess() {
+        record(false);
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            close();
+        }
+    }
+
+    private void onFailure() {
+        record(true);
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMs = Math.min(MAX_OPEN_MS, openMs * 2);
+            open("probe failed");
+        } else if (state == State.CLOSED && consecutiveFailures >= CONSECUTIVE_TRIP) {
+            open(consecutiveFailures + " radio failures in a row");
+        } else if (state == State.CLOSED && outcomeCount >= MIN_SAMPLES
+                && failuresInWindow >= FAILURE_RATE_THRESHOLD * outcomeCount) {
+            open(failuresInWindow + "/" + outcomeCount + " recent sends failed");
+        }
+    }
+
+    private void record(boolean failed) {
+        if (outcomeCount == WINDOW) {
+            if (outcomes[outcomeIndex]) failuresInWindow--;
+        } else {
+            outcomeCount++;
+        }
+        outcomes[outcomeIndex] = failed;
+        if (failed) failuresInWindow++;
+        outcomeIndex = (outcomeIndex + 1) % WINDOW;
+    }
+
+    private void open(String reason) {
+        if (state != State.OPEN) {
+            LOG.warning("Pausing SIM subId " + subscriptionId + " for " + openMs + " ms: " + reason);
+        }
+        openUntil = System.currentTimeMillis() + openMs;
+        transition(State.OPEN);
+    }
+
+    private void close() {
+        openMs = BASE_OPEN_MS;
+        outcomeCount = 0;
+        outcomeIndex = 0;
+        failuresInWindow = 0;
+        consecutiveFailures = 0;
+        transition(State.CLOSED);
+    }
+
+    private void transition(State next) {
+        state = next;
+        probeSentAt = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,51 @@
+package com.smsindia.dispatch;
+
+/**
+ * One sending lane per active SIM. Each lane has its own
+ * {@link SendRateGovernor} and its own {@link CircuitBreaker}, so a
+ * struggling SIM slows down or pauses without holding back the others. The
+ * {@link SmsSender} maps the lane's subscription to its radio.
+ */
+public class DispatchLane {
+
+    public final int simSlot;
+    public final int subscriptionId;
+    public final SendRateGovernor governor;
+    public final CircuitBreaker breaker;
+    Thread thread;
+
+    private long sentCount = 0;
+
+    public DispatchLane(int simSlot, int subscriptionId, SendRateGovernor governor) {
+        this.simSlot = simSlot;
+        this.subscriptionId = subscriptionId;
+        this.governor = governor;
+        this.breaker = CircuitBreaker.forSubscription(subscriptionId);
+    }
+
+    public synchronized void onSendSucceeded() {
+        sentCount++;
+    }
+
+    /** A send threw before reaching the radio; repeated errors open the breaker. */
+    public void onSendFailed() {
+        breaker.onSendError();
+    }
+
+    /** Blocks while the lane's radio is considered unhealthy. */
+    public void awaitHealthy() throws InterruptedException {
+        breaker.awaitClosed();
+    }
+
+    public boolean isHealthy() {
+        return breaker.isClosed();
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    public String getLabel() {
+        return "SIM" + (simSlot + 1);
+    }
+}
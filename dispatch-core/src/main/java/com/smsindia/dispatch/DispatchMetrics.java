@@ -0,0 +1,256 @@
+package com.smsindia.dispatch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path metrics for the dispatch engine. Writers only touch lock-free
+ * counters and gauges; readers (the TaskFragment dashboard, the periodic
+ * export) take a {@link Snapshot}.
+ */
+public class DispatchMetrics {
+
+    public static final long EXPORT_INTERVAL_MS = 5 * 60 * 1000;
+    public static final String FAILURE_EXCEPTION = "exception";
+    public static final String FAILURE_INVALID_PHONE = "invalid_phone";
+    public static final String FAILURE_EXPIRED = "expired";
+    private static final int RATE_WINDOW_S = 10;
+    private static final int SECOND_SLOTS = 64; // ring of per-second send counts
+
+    // Counters
+    private static final LongAdder sends = new LongAdder();
+    private static final LongAdder segments = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushedOps = new LongAdder();
+    private static final LongAdder flushFailures = new LongAdder();
+    private static final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private static final AtomicLongArray secondCounts = new AtomicLongArray(SECOND_SLOTS);
+    private static final AtomicLongArray secondStamps = new AtomicLongArray(SECOND_SLOTS);
+
+    // Gauges
+    private static final AtomicLong queueDepth = new AtomicLong();
+    private static final AtomicLong inFlight = new AtomicLong();
+    private static final AtomicLong oldestInFlightAt = new AtomicLong();
+    private static final AtomicLong writeBacklog = new AtomicLong();
+    private static final AtomicLong lastFetchMs = new AtomicLong();
+    private static final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private static final AtomicLong lastFlushMs = new AtomicLong();
+    private static final LatencyHistogram flushLatency = new LatencyHistogram();
+    private static final LatencyHistogram[] queueWait = new LatencyHistogram[SmsTask.MAX_PRIORITY + 1];
+
+    static {
+        for (int i = 0; i < queueWait.length; i++) {
+            queueWait[i] = new LatencyHistogram();
+        }
+    }
+
+    /** A message handed to the radio, with the number of segments it went out as. */
+    public static void recordSend(int segmentCount) {
+        sends.increment();
+        segments.add(segmentCount);
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % SECOND_SLOTS);
+        long stamp = secondStamps.get(slot);
+        if (stamp != second && secondStamps.compareAndSet(slot, stamp, second)) {
+            secondCounts.set(slot, 0);
+        }
+        secondCounts.incrementAndGet(slot);
+    }
+
+    /** Counts a failure under its SmsManager result code, or {@link #FAILURE_EXCEPTION}. */
+    public static void recordFailure(String reason) {
+        LongAdder counter = failures.get(reason);
+        if (counter == null) {
+            counter = failures.computeIfAbsent(reason, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /** A failed attempt was put back for a later retry instead of being settled. */
+    public static void recordRetry() {
+        retries.increment();
+    }
+
+    public static void recordFailure(int resultCode) {
+        recordFailure("code_" + resultCode);
+    }
+
+    /** Latency of one sms_tasks read (a page or a lease transaction). */
+    public static void recordFetch(long millis) {
+        lastFetchMs.set(millis);
+        fetchLatency.record(millis);
+    }
+
+    /** One acknowledged write-behind commit: its round trip and the operations it carried. */
+    public static void recordFlush(long millis, int ops) {
+        flushes.increment();
+        flushedOps.add(ops);
+        lastFlushMs.set(millis);
+        flushLatency.record(millis);
+    }
+
+    /** A write-behind commit failed and was put back for a later flush. */
+    public static void recordFlushFailure() {
+        flushFailures.increment();
+    }
+
+    /** Time a task spent in the scheduler before a lane took it, by priority. */
+    public static void recordQueueWait(int priority, long millis) {
+        queueWait[Math.max(0, Math.min(SmsTask.MAX_PRIORITY, priority))].record(millis);
+    }
+
+    public static void setQueueDepth(long depth) {
+        queueDepth.set(depth);
+    }
+
+    public static void setInFlight(long count) {
+        inFlight.set(count);
+    }
+
+    /** When the oldest message still awaiting its delivery report was sent, 0 if none. */
+    public static void setOldestInFlight(long sentAt) {
+        oldestInFlightAt.set(sentAt);
+    }
+
+    public static void setWriteBacklog(long ops) {
+        writeBacklog.set(ops);
+    }
+
+    public static Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.timestamp = System.currentTimeMillis();
+        s.sendsTotal = sends.sum();
+        s.segmentsTotal = segments.sum();
+        s.sendsPerSec = recentSendRate(s.timestamp / 1000);
+        s.retriesTotal = retries.sum();
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            s.failures.put(entry.getKey(), entry.getValue().sum());
+        }
+        s.queueDepth = queueDepth.get();
+        s.inFlight = inFlight.get();
+        long oldestAt = oldestInFlightAt.get();
+        s.oldestInFlightMs = oldestAt == 0 ? 0 : Math.max(0, s.timestamp - oldestAt);
+        s.writeBacklog = writeBacklog.get();
+        s.flushesTotal = flushes.sum();
+        s.flushedOpsTotal = flushedOps.sum();
+        s.flushFailuresTotal = flushFailures.sum();
+        s.lastFlushMs = lastFlushMs.get();
+        s.flushP95Ms = LatencyHistogram.percentile(flushLatency.snapshot(), 95);
+        s.lastFetchMs = lastFetchMs.get();
+        long[] fetches = fetchLatency.snapshot();
+        s.fetchP50Ms = LatencyHistogram.percentile(fetches, 50);
+        s.fetchP95Ms = LatencyHistogram.percentile(fetches, 95);
+        for (int priority = queueWait.length - 1; priority >= 0; priority--) {
+            long[] waits = queueWait[priority].snapshot();
+            if (LatencyHistogram.count(waits) == 0) continue;
+            s.waitP50Ms.put(priority, LatencyHistogram.percentile(waits, 50));
+            s.waitP95Ms.put(priority, LatencyHistogram.percentile(waits, 95));
+        }
+        return s;
+    }
+
+    // Average over the last RATE_WINDOW_S complete seconds
+    private static double recentSendRate(long nowSecond) {
+        long total = 0;
+        for (long second = nowSecond - RATE_WINDOW_S; second < nowSecond; second++) {
+            int slot = (int) (second % SECOND_SLOTS);
+            if (secondStamps.get(slot) == second) {
+                total += secondCounts.get(slot);
+            }
+        }
+        return total / (double) RATE_WINDOW_S;
+    }
+
+    public static class Snapshot {
+        public long timestamp;
+        public long sendsTotal;
+        public long segmentsTotal;
+        public double sendsPerSec;
+        public long retriesTotal;
+        public final Map<String, Long> failures = new TreeMap<>();
+        public long queueDepth;
+        public long inFlight;
+        public long oldestInFlightMs;
+        public long writeBacklog;
+        public long flushesTotal;
+        public long flushedOpsTotal;
+        public long flushFailuresTotal;
+        public long lastFlushMs;
+        public long flushP95Ms;
+        public long lastFetchMs;
+        public long fetchP50Ms;
+        public long fetchP95Ms;
+        // Queue wait by priority, only for priorities that have been sent
+        public final Map<Integer, Long> waitP50Ms = new TreeMap<>(Collections.reverseOrder());
+        public final Map<Integer, Long> waitP95Ms = new TreeMap<>(Collections.reverseOrder());
+
+        public long getFailuresTotal() {
+            long total = 0;
+            for (long count : failures.values()) total += count;
+            return total;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("timestamp", timestamp);
+            map.put("sendsTotal", sendsTotal);
+            map.put("segmentsTotal", segmentsTotal);
+            map.put("sendsPerSec", sendsPerSec);
+            map.put("retriesTotal", retriesTotal);
+            map.put("failures", new HashMap<>(failures));
+            map.put("queueDepth", queueDepth);
+            map.put("inFlight", inFlight);
+            map.put("oldestInFlightMs", oldestInFlightMs);
+            map.put("writeBacklog", writeBacklog);
+            map.put("flushesTotal", flushesTotal);
+            map.put("flushedOpsTotal", flushedOpsTotal);
+            map.put("flushFailuresTotal", flushFailuresTotal);
+            map.put("lastFlushMs", lastFlushMs);
+            map.put("flushP95Ms", flushP95Ms);
+            map.put("lastFetchMs", lastFetchMs);
+            map.put("fetchP50Ms", fetchP50Ms);
+            map.put("fetchP95Ms", fetchP95Ms);
+            Map<String, Object> waits = new HashMap<>();
+            for (Map.Entry<Integer, Long> entry : waitP50Ms.entrySet()) {
+                Map<String, Object> wait = new HashMap<>();
+                wait.put("p50Ms", entry.getValue());
+                wait.put("p95Ms", waitP95Ms.get(entry.getKey()));
+                waits.put(String.valueOf(entry.getKey()), wait);
+            }
+            map.put("queueWaitByPriority", waits);
+            return map;
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "Sent: %d  (%.2f/s)  Segments: %d\n", sendsTotal, sendsPerSec, segmentsTotal));
+            sb.append("Queued: ").append(queueDepth).append("   In flight: ").append(inFlight);
+            if (inFlight > 0) {
+                sb.append(" (oldest ").append(oldestInFlightMs / 1000).append(" s)");
+            }
+            sb.append('\n');
+            sb.append("Pending writes: ").append(writeBacklog).append("   Flushed: ").append(flushedOpsTotal)
+                    .append(" in ").append(flushesTotal).append(" (").append(flushFailuresTotal).append(" failed)\n");
+            sb.append("Flush: last ").append(lastFlushMs).append(" ms, p95 ").append(flushP95Ms).append(" ms\n");
+            sb.append("Fetch: last ").append(lastFetchMs).append(" ms, p50 ").append(fetchP50Ms)
+                    .append(" ms, p95 ").append(fetchP95Ms).append(" ms\n");
+            for (Map.Entry<Integer, Long> entry : waitP50Ms.entrySet()) {
+                sb.append("Wait P").append(entry.getKey()).append(": p50 ").append(entry.getValue())
+                        .append(" ms, p95 ").append(waitP95Ms.get(entry.getKey())).append(" ms\n");
+            }
+            sb.append("Failures: ").append(getFailuresTotal()).append("   Retried: ").append(retriesTotal);
+            for (Map.Entry<String, Long> entry : failures.entrySet()) {
+                sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.smsindia.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shared hand-off between the task feeder and the per-SIM dispatch lanes.
+ *
+ * Lanes pull: a lane only asks for the next task once its rate governor has
+ * granted it a send slot, so work spreads across SIMs in proportion to each
+ * lane's free capacity, and a paused or throttled lane simply takes less.
+ * The queue is bounded so the feeder never leases more than the lanes can
+ * send within a lease.
+ *
+ * Queued tasks form a binary heap: highest {@link SmsTask#priority} first,
+ * then earliest deadline, then arrival order. A task whose deadline passes
+ * while queued is handed back through {@link Slot#expired} instead of
+ * being sent, so it never costs a send slot, and one whose lease lapses
+ * while queued (e.g. while every lane's breaker is open) through
+ * {@link Slot#lapsed}, since another worker may hold it by now. Tasks,
+ * enqueue times and
+ * arrival numbers are kept in parallel arrays and handed out through a
+ * caller-owned {@link Slot}, so a steady hand-off allocates nothing per
+ * message.
+ */
+public class DispatchScheduler {
+
+    /** Reusable out-parameter for {@link #next(long, Slot)}; one per lane. */
+    public static final class Slot {
+        public SmsTask task;
+        public long queuedAt;
+        /** Tasks found expired while looking for the next one; the caller settles and clears them. */
+        public final List<SmsTask> expired = new ArrayList<>();
+        /** Tasks whose lease lapsed while queued; the caller drops and clears them. */
+        public final List<SmsTask> lapsed = new ArrayList<>();
+    }
+
+    private final int capacity;
+    private SmsTask[] tasks;
+    private long[] queuedAt;
+    private long[] arrival;
+    private long nextArrival = 0;
+    private int size = 0;
+
+    public DispatchScheduler(int capacity) {
+        this.capacity = capacity;
+        this.tasks = new SmsTask[Math.max(1, capacity)];
+        this.queuedAt = new long[tasks.length];
+        this.arrival = new long[tasks.length];
+    }
+
+    /**
+     * Blocks until there is room for {@code count} more tasks.
+     *
+     * @return false if there was still no room when the timeout expired
+     */
+    public synchronized boolean awaitRoom(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (capacity - size < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized void submit(SmsTask task, long now) {
+        add(task, now);
+        DispatchMetrics.setQueueDepth(size);
+        notifyAll();
+    }
+
+    public synchronized void submitAll(List<SmsTask> batch, long now) {
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            add(batch.get(i), now);
+        }
+        DispatchMetrics.setQueueDepth(size);
+        notifyAll();
+    }
+
+    /**
+     * Hands the most urgent live task to a lane that has capacity for it.
+     * Expired tasks met on the way are moved to {@code slot.expired}, and
+     * tasks whose lease lapsed to {@code slot.lapsed}.
+     *
+     * @return false if no live task arrived within the timeout
+     */
+    public synchronized boolean next(long timeoutMs, Slot slot) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            while (size == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            SmsTask task = tasks[0];
+            slot.task = task;
+            slot.queuedAt = queuedAt[0];
+            removeTop();
+            DispatchMetrics.setQueueDepth(size);
+            notifyAll(); // room for the feeder
+
+            long now = System.currentTimeMillis();
+            if (task.isExpired(now)) {
+                slot.expired.add(task);
+            } else if (task.isLeaseLapsed(now)) {
+                slot.lapsed.add(task);
+            } else {
+                return true;
+            }
+            slot.task = null;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Removes every queued task, e.g. to hand the leases back on stop. */
+    public synchronized List<SmsTask> drain() {
+        List<SmsTask> drained = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            drained.add(tasks[i]);
+            tasks[i] = null;
+        }
+        size = 0;
+        DispatchMetrics.setQueueDepth(0);
+        notifyAll();
+        return drained;
+    }
+
+    // Caller holds the lock
+    private void add(SmsTask task, long now) {
+        if (size == tasks.length) {
+            grow(); // only if a caller skipped awaitRoom
+        }
+        int i = size++;
+        tasks[i] = task;
+        queuedAt[i] = now;
+        arrival[i] = nextArrival++;
+        siftUp(i);
+    }
+
+    private void removeTop() {
+        size--;
+        if (size > 0) {
+            move(size, 0);
+            siftDown(0);
+        }
+        tasks[size] = null;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(child + 1, child)) child++;
+            if (!before(child, i)) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    // Priority, then earliest deadline (none sorts last), then FIFO
+    private boolean before(int a, int b) {
+        SmsTask x = tasks[a];
+        SmsTask y = tasks[b];
+        if (x.priority != y.priority) return x.priority > y.priority;
+        long dx = x.expiresAt == SmsTask.NO_DEADLINE ? Long.MAX_VALUE : x.expiresAt;
+        long dy = y.expiresAt == SmsTask.NO_DEADLINE ? Long.MAX_VALUE : y.expiresAt;
+        if (dx != dy) return dx < dy;
+        return arrival[a] < arrival[b];
+    }
+
+    private void swap(int a, int b) {
+        SmsTask task = tasks[a];
+        long queued = queuedAt[a];
+        long order = arrival[a];
+        move(b, a);
+        tasks[b] = task;
+        queuedAt[b] = queued;
+        arrival[b] = order;
+    }
+
+    private void move(int from, int to) {
+        tasks[to] = tasks[from];
+        queuedAt[to] = queuedAt[from];
+        arrival[to] = arrival[from];
+    }
+
+    private void grow() {
+        int length = tasks.length * 2;
+        tasks = Arrays.copyOf(tasks, length);
+        queuedAt = Arrays.copyOf(queuedAt, length);
+        arrival = Arrays.copyOf(arrival, length);
+    }
+}
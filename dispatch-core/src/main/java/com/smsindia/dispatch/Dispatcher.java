@@ -0,0 +1,310 @@
+package com.smsindia.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The dispatch loop of one worker, independent of Android.
+ *
+ * A feeder thread leases batches from the {@link TaskStore} into the
+ * {@link DispatchScheduler}; one thread per {@link DispatchLane} takes a send
+ * slot from its governor, pulls the most urgent task and hands it to the
+ * {@link SmsSender}. Tasks past their deadline are rejected as
+ * {@link DispatchMetrics#FAILURE_EXPIRED} without being sent.
+ *
+ * Failures are classified: a retryable one (see
+ * {@link ResultCodes#isRetryable(int)}, or a send exception other than a bad
+ * argument) goes to the {@link RetryQueue} and re-enters the scheduler once
+ * its backoff has passed; only permanent failures and exhausted retries are
+ * settled.
+ *
+ * A leased task is only sent while its lease holds: one that lapses in the
+ * queue is dropped, leaving it to whichever worker claims it next. While
+ * every lane's breaker is open the feeder stops leasing and hands the queue
+ * back to the store, so other workers can send it meanwhile.
+ */
+public class Dispatcher {
+
+    private static final Logger LOG = Logger.getLogger("Dispatcher");
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    private static final long CLAIM_TIMEOUT_MS = 10000;
+    private static final long ERROR_BACKOFF_MS = 10000;
+    private static final long NEXT_TIMEOUT_MS = 1000;
+    private static final long PARKED_CHECK_MS = 1000;
+
+    /** Told about every task handed to the radio, e.g. to refresh a notification. */
+    public interface Listener {
+        void onSent(DispatchLane lane, SmsTask task);
+    }
+
+    private final TaskStore store;
+    private final SmsSender sender;
+    private final List<DispatchLane> lanes;
+    private final int batchSize;
+    private final DispatchScheduler scheduler;
+    private final RetryQueue retries = new RetryQueue();
+    private final AtomicLong sentTotal = new AtomicLong();
+
+    private final List<SmsTask> sendable = new ArrayList<>(); // feeder thread only
+
+    private volatile Listener listener;
+    private volatile boolean running = false;
+    private Thread feeder;
+    private Thread retrier;
+
+    public Dispatcher(TaskStore store, SmsSender sender, List<DispatchLane> lanes, int batchSize) {
+        this.store = store;
+        this.sender = sender;
+        this.lanes = Collections.unmodifiableList(new ArrayList<>(lanes));
+        this.batchSize = batchSize;
+        // Two lease batches per lane: enough to keep every SIM busy, few enough to send within a lease
+        this.scheduler = new DispatchScheduler(2 * batchSize * lanes.size());
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (DispatchLane lane : lanes) {
+            Thread laneThread = new Thread(() -> runLane(lane), "SmsLane-" + lane.getLabel());
+            lane.thread = laneThread;
+            laneThread.start();
+        }
+        feeder = new Thread(this::runFeeder, "SmsFeeder");
+        feeder.start();
+        retrier = new Thread(this::runRetries, "SmsRetry");
+        retrier.start();
+    }
+
+    /**
+     * Stops every thread and hands the leases of tasks that were queued but
+     * not yet sent back to the store.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        for (DispatchLane lane : lanes) {
+            if (lane.thread != null) {
+                lane.thread.interrupt();
+            }
+        }
+        if (feeder != null) {
+            feeder.interrupt();
+        }
+        if (retrier != null) {
+            retrier.interrupt();
+        }
+        handBack();
+    }
+
+    // Releases everything queued or waiting for a retry; lapsed leases may be someone else's, so those are dropped
+    private void handBack() {
+        List<SmsTask> queued = scheduler.drain();
+        queued.addAll(retries.drain());
+        long now = System.currentTimeMillis();
+        List<SmsTask> held = new ArrayList<>(queued.size());
+        for (int i = 0, n = queued.size(); i < n; i++) {
+            SmsTask task = queued.get(i);
+            if (!task.isLeaseLapsed(now)) {
+                held.add(task);
+            }
+        }
+        if (!held.isEmpty()) {
+            store.release(held);
+        }
+    }
+
+    // True while no lane could send: each breaker open, none half-open with a probe to send
+    private boolean allLanesOpen() {
+        for (int i = 0, n = lanes.size(); i < n; i++) {
+            if (lanes.get(i).breaker.getState() != CircuitBreaker.State.OPEN) return false;
+        }
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public List<DispatchLane> getLanes() {
+        return lanes;
+    }
+
+    public DispatchScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public long getSentTotal() {
+        return sentTotal.get();
+    }
+
+    public int getRetryBacklog() {
+        return retries.size();
+    }
+
+    /**
+     * Called with the radio's result for a task that did not go out. A
+     * retryable failure is queued for another attempt.
+     *
+     * @return true if the task will be retried and must not be settled yet
+     */
+    public boolean retryLater(SmsTask task, int resultCode) {
+        return ResultCodes.isRetryable(resultCode) && scheduleRetry(task);
+    }
+
+    private boolean scheduleRetry(SmsTask task) {
+        if (!running || !retries.offer(task, System.currentTimeMillis())) return false;
+        DispatchMetrics.recordRetry();
+        return true;
+    }
+
+    // Feeder: leases tasks and hands them to the lanes through the scheduler
+    private void runFeeder() {
+        while (running) {
+            try {
+                if (allLanesOpen()) {
+                    if (scheduler.size() > 0 || retries.size() > 0) {
+                        LOG.info("Every lane's breaker is open, handing queued tasks back");
+                        handBack();
+                    }
+                    Thread.sleep(PARKED_CHECK_MS);
+                    continue;
+                }
+                // Bounded, so a full queue behind open breakers is noticed above
+                if (!scheduler.awaitRoom(batchSize, PARKED_CHECK_MS)) continue;
+                List<SmsTask> held = store.claim(batchSize, CLAIM_TIMEOUT_MS);
+                if (held.isEmpty()) continue;
+
+                sendable.clear();
+                long now = System.currentTimeMillis();
+                for (int i = 0, n = held.size(); i < n; i++) {
+                    SmsTask task = held.get(i);
+                    if (task.isExpired(now)) {
+                        expire(task);
+                        continue;
+                    }
+                    // Rejected here, before the task can take a lane's send slot or token
+                    if (!task.hasValidPhone()) {
+                        LOG.warning("Rejecting task " + task.id + ": invalid phone number");
+                        DispatchMetrics.recordFailure(DispatchMetrics.FAILURE_INVALID_PHONE);
+                        store.reject(task, DispatchMetrics.FAILURE_INVALID_PHONE);
+                        continue;
+                    }
+                    sendable.add(task);
+                }
+                scheduler.submitAll(sendable, now);
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to claim tasks", e);
+                try {
+                    Thread.sleep(ERROR_BACKOFF_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Moves retries back into the scheduler as their backoff passes
+    private void runRetries() {
+        while (running) {
+            try {
+                scheduler.submit(retries.takeDue(), System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // One per SIM: take a send slot from the lane's governor, then the next task from the scheduler
+    private void runLane(DispatchLane lane) {
+        DispatchScheduler.Slot slot = new DispatchScheduler.Slot();
+        while (running) {
+            try {
+                lane.awaitHealthy();
+                lane.governor.acquire();
+
+                boolean found = scheduler.next(NEXT_TIMEOUT_MS, slot);
+                if (!slot.expired.isEmpty()) {
+                    for (int i = 0, n = slot.expired.size(); i < n; i++) {
+                        expire(slot.expired.get(i));
+                    }
+                    slot.expired.clear();
+                }
+                if (!slot.lapsed.isEmpty()) {
+                    LOG.fine("Dropping " + slot.lapsed.size() + " tasks whose lease lapsed while queued");
+                    slot.lapsed.clear();
+                }
+                if (!found) {
+                    lane.governor.refund();
+                    continue;
+                }
+                SmsTask task = slot.task;
+                slot.task = null;
+                DispatchMetrics.recordQueueWait(task.priority, System.currentTimeMillis() - slot.queuedAt);
+                dispatch(lane, task, slot.queuedAt);
+
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void expire(SmsTask task) {
+        LOG.fine("Dropping task " + task.id + ": expired before it could be sent");
+        DispatchMetrics.recordFailure(DispatchMetrics.FAILURE_EXPIRED);
+        store.reject(task, DispatchMetrics.FAILURE_EXPIRED);
+    }
+
+    /**
+     * Sends one task on a lane that already holds a send slot; the slot is
+     * refunded if the task is not sent.
+     *
+     * @return true if the task was handed to the radio
+     */
+    public boolean dispatch(DispatchLane lane, SmsTask task, long queuedAt) {
+        if (!task.isComplete() || !task.hasValidPhone()) {
+            LOG.warning("Incomplete SMS task data: id=" + task.id);
+            lane.governor.refund();
+            return false;
+        }
+
+        int segments;
+        try {
+            segments = sender.send(lane, task, queuedAt);
+            if (segments == 0) {
+                lane.governor.refund();
+                return false;
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to send task " + task.id + " via " + lane.getLabel(), e);
+            lane.onSendFailed();
+            // A bad argument fails the same way every time; anything else may be the radio
+            if (e instanceof IllegalArgumentException || !scheduleRetry(task)) {
+                DispatchMetrics.recordFailure(DispatchMetrics.FAILURE_EXCEPTION);
+                store.discard(task);
+            }
+            return false;
+        }
+
+        lane.onSendSucceeded();
+        lane.governor.charge(segments - 1);
+        DispatchMetrics.recordSend(segments);
+        sentTotal.incrementAndGet();
+        Listener l = listener;
+        if (l != null) {
+            l.onSent(lane, task);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+package com.smsindia.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram in milliseconds. Each power of two
+ * is split into {@link #SUB_BUCKETS} linear buckets, so percentiles are
+ * accurate to within ~12% from 1 ms up to about 2^31 ms while the whole
+ * histogram is a fixed array of counters. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 32;
+    public static final int BUCKET_COUNT = MAGNITUDES * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long millis) {
+        counts.incrementAndGet(bucketOf(Math.max(0, millis)));
+    }
+
+    /** Copies the counts and clears the histogram, so each upload covers one window. */
+    public long[] snapshotAndReset() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+        }
+        return snapshot;
+    }
+
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long c : snapshot) total += c;
+        return total;
+    }
+
+    /** Value at the given percentile (0-100), reported as the bucket's upper bound. */
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = count(snapshot);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /** Non-empty buckets as [bucketIndex, count, ...], the compact upload form. */
+    public static List<Long> sparse(long[] snapshot) {
+        List<Long> pairs = new ArrayList<>();
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] != 0) {
+                pairs.add((long) i);
+                pairs.add(snapshot[i]);
+            }
+        }
+        return pairs;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        int bucket = magnitude * SUB_BUCKETS + sub;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    static long upperBound(int bucket) {
+        int magnitude = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (magnitude == 0) return sub;
+        return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,209 @@
+package com.smsindia.dispatch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Works out how a message body goes over the air: in the GSM 03.38 7-bit
+ * alphabet (160 characters in one segment, 153 per segment once
+ * concatenated) or, as soon as one character is outside it, in UCS-2 (70 and
+ * 67). A single emoji or curly quote can therefore triple the segment count,
+ * and with it the carrier cost and the send budget a message uses.
+ *
+ * With {@link #setTransliterate(boolean) transliteration} on, typographic
+ * punctuation and odd spaces (curly quotes, dashes, ellipses, non-breaking
+ * spaces) are replaced by their plain GSM-7 equivalents, but only if that
+ * makes the whole body GSM-7; letters are never touched.
+ *
+ * Results are kept in a small LRU cache keyed by the original body, because
+ * campaigns send the same text over and over.
+ */
+public final class MessageEncoding {
+
+    public enum Charset { GSM7, UCS2 }
+
+    /** Encoding and segment count of one body, plus the text to actually send. */
+    public static final class Segmentation {
+        public final String body;
+        public final Charset charset;
+        /** Septets for GSM-7, UTF-16 code units for UCS-2. */
+        public final int units;
+        public final int segments;
+
+        Segmentation(String body, Charset charset, int units, int segments) {
+            this.body = body;
+            this.charset = charset;
+            this.units = units;
+            this.segments = segments;
+        }
+    }
+
+    public static final int GSM7_SINGLE = 160;
+    public static final int GSM7_MULTI = 153;
+    public static final int UCS2_SINGLE = 70;
+    public static final int UCS2_MULTI = 67;
+    private static final int CACHE_SIZE = 256;
+
+    private static final String GSM7_BASIC = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9 !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+            + "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|\u20AC"; // two septets each (escape + char)
+
+    // Septets per char below 0x100: 0 = not in GSM-7
+    private static final byte[] LATIN1_SEPTETS = new byte[0x100];
+
+    static {
+        for (int i = 0; i < GSM7_BASIC.length(); i++) {
+            char c = GSM7_BASIC.charAt(i);
+            if (c < 0x100) LATIN1_SEPTETS[c] = 1;
+        }
+        for (int i = 0; i < GSM7_EXTENSION.length(); i++) {
+            char c = GSM7_EXTENSION.charAt(i);
+            if (c < 0x100) LATIN1_SEPTETS[c] = 2;
+        }
+    }
+
+    private static volatile boolean transliterate = false;
+
+    private static final Map<String, Segmentation> cache = new LinkedHashMap<String, Segmentation>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Segmentation> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private MessageEncoding() {
+    }
+
+    public static void setTransliterate(boolean enabled) {
+        if (transliterate == enabled) return;
+        transliterate = enabled;
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static boolean isTransliterating() {
+        return transliterate;
+    }
+
+    public static Segmentation analyze(String body) {
+        if (body == null) return null;
+        Segmentation result;
+        synchronized (cache) {
+            result = cache.get(body);
+        }
+        if (result == null) {
+            result = analyzeUncached(body, transliterate);
+            synchronized (cache) {
+                cache.put(body, result);
+            }
+        }
+        return result;
+    }
+
+    /** The cache-less computation behind {@link #analyze(String)}. */
+    public static Segmentation analyzeUncached(String body, boolean transliterate) {
+        Segmentation gsm = gsm7(body);
+        if (gsm != null) return gsm;
+        if (transliterate) {
+            String plain = transliterate(body);
+            if (plain != null) {
+                gsm = gsm7(plain);
+                if (gsm != null) return gsm;
+            }
+        }
+        return ucs2(body);
+    }
+
+    /** Septets the character takes in GSM-7: 1, 2 for the extension table, 0 if it cannot be encoded. */
+    public static int septets(char c) {
+        if (c < 0x100) return LATIN1_SEPTETS[c];
+        if (c == '\u20AC') return 2;
+        return GSM7_BASIC.indexOf(c) >= 0 ? 1 : 0; // the Greek capitals
+    }
+
+    // Null if any character needs UCS-2
+    private static Segmentation gsm7(String body) {
+        int total = 0;
+        for (int i = 0, n = body.length(); i < n; i++) {
+            int septets = septets(body.charAt(i));
+            if (septets == 0) return null;
+            total += septets;
+        }
+        if (total <= GSM7_SINGLE) {
+            return new Segmentation(body, Charset.GSM7, total, 1);
+        }
+        // An escape sequence is never split across two segments
+        int segments = 1;
+        int used = 0;
+        for (int i = 0, n = body.length(); i < n; i++) {
+            int septets = septets(body.charAt(i));
+            if (used + septets > GSM7_MULTI) {
+                segments++;
+                used = 0;
+            }
+            used += septets;
+        }
+        return new Segmentation(body, Charset.GSM7, total, segments);
+    }
+
+    private static Segmentation ucs2(String body) {
+        int total = body.length();
+        if (total <= UCS2_SINGLE) {
+            return new Segmentation(body, Charset.UCS2, total, 1);
+        }
+        // Nor is a surrogate pair (an emoji)
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < total; i++) {
+            int units = Character.isHighSurrogate(body.charAt(i)) && i + 1 < total ? 2 : 1;
+            if (used + units > UCS2_MULTI) {
+                segments++;
+                used = 0;
+            }
+            used += units;
+            i += units - 1;
+        }
+        return new Segmentation(body, Charset.UCS2, total, segments);
+    }
+
+    // Plain equivalents of typographic punctuation and spaces; null if nothing changed
+    private static String transliterate(String body) {
+        StringBuilder sb = null;
+        for (int i = 0, n = body.length(); i < n; i++) {
+            char c = body.charAt(i);
+            String replacement = plainFor(c);
+            if (replacement == null) {
+                if (sb != null) sb.append(c);
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(n);
+                sb.append(body, 0, i);
+            }
+            sb.append(replacement);
+        }
+        return sb == null ? null : sb.toString();
+    }
+
+    private static String plainFor(char c) {
+        switch (c) {
+            case '\u2018': case '\u2019': case '\u201A': case '\u201B': case '\u2032': case '\u00B4': case '`':
+                return "'";
+            case '\u201C': case '\u201D': case '\u201E': case '\u201F': case '\u2033': case '\u00AB': case '\u00BB':
+                return "\"";
+            case '\u2010': case '\u2011': case '\u2012': case '\u2013': case '\u2014': case '\u2015': case '\u2212':
+                return "-";
+            case '\u2026':
+                return "...";
+            case '\u2022':
+                return "*";
+            case '\u00A0': case '\u2002': case '\u2003': case '\u2009': case '\u200A': case '\u202F': case '\t':
+                return " ";
+            case '\u200B': case '\u200C': case '\u200D': case '\uFEFF': // zero-width
+                return "";
+            default:
+                return null;
+        }
+    }
+}
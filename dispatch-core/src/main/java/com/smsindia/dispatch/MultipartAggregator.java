@@ -0,0 +1,67 @@
+package com.smsindia.dispatch;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects per-part delivery reports of a multipart SMS so that the task is
+ * settled once, after every part has reported. The message counts as sent
+ * only if all parts were delivered. Reports are collected per send attempt
+ * ({@link SmsTask#attemptKey}), so a retried message never mixes its parts
+ * with those of an earlier attempt.
+ */
+public class MultipartAggregator {
+
+    private static final int MAX_PENDING = 1000;
+    private static final long STALE_AFTER_MS = 30 * 60 * 1000;
+
+    private static final Map<String, PartState> pending = new ConcurrentHashMap<>();
+
+    private static class PartState {
+        final int partCount;
+        final BitSet reported;
+        final long createdAt = System.currentTimeMillis();
+        int resultCode = ResultCodes.RESULT_OK;
+
+        PartState(int partCount) {
+            this.partCount = partCount;
+            this.reported = new BitSet(partCount);
+        }
+    }
+
+    /**
+     * Records the result of one part of the attempt with the given key.
+     *
+     * @return null while parts are still outstanding, otherwise the combined
+     * result: RESULT_OK if every part succeeded, else the first failure code
+     */
+    public static Integer onPart(String attemptKey, int partIndex, int partCount, int resultCode) {
+        if (pending.size() > MAX_PENDING) {
+            pruneStale();
+        }
+
+        PartState state = pending.computeIfAbsent(attemptKey, key -> new PartState(partCount));
+        synchronized (state) {
+            if (state.reported.get(partIndex)) return null; // duplicate broadcast
+            state.reported.set(partIndex);
+            if (resultCode != ResultCodes.RESULT_OK && state.resultCode == ResultCodes.RESULT_OK) {
+                state.resultCode = resultCode;
+            }
+            if (state.reported.cardinality() < state.partCount) return null;
+        }
+
+        pending.remove(attemptKey);
+        return state.resultCode;
+    }
+
+    // Parts that never report (e.g. the carrier dropped the report) must not pile up forever
+    private static void pruneStale() {
+        long cutoff = System.currentTimeMillis() - STALE_AFTER_MS;
+        Iterator<PartState> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().createdAt < cutoff) it.remove();
+        }
+    }
+}
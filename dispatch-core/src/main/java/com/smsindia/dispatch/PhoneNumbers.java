@@ -0,0 +1,106 @@
+package com.smsindia.dispatch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Normalizes and validates Indian mobile numbers in one pass over the input,
+ * without regexes or intermediate strings. Accepted forms, with any spaces,
+ * dashes, dots or parentheses:
+ * <ul>
+ *   <li>{@code 98765 43210} (10 digits, leading 6-9)</li>
+ *   <li>{@code 098765 43210} (trunk prefix 0)</li>
+ *   <li>{@code 91 98765 43210}, {@code +91 98765 43210} or {@code 0091 98765 43210}</li>
+ * </ul>
+ * Results, including rejections, are kept in a small LRU cache because the
+ * same recipients come up again and again.
+ */
+public final class PhoneNumbers {
+
+    public static final String DEFAULT_COUNTRY_PREFIX = "+91";
+    private static final int NATIONAL_DIGITS = 10;
+    private static final int MAX_DIGITS = 14; // 0091 + national number
+    private static final int CACHE_SIZE = 256;
+
+    private static final String INVALID = new String(""); // cached rejection, compared by identity
+
+    private static final Map<String, String> cache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * @return the number in E.164 form ({@code +91XXXXXXXXXX}), or null if it
+     * is not a valid Indian mobile number
+     */
+    public static String normalize(String phone) {
+        if (phone == null) return null;
+        String result;
+        synchronized (cache) {
+            result = cache.get(phone);
+        }
+        if (result == null) {
+            result = normalizeUncached(phone);
+            synchronized (cache) {
+                cache.put(phone, result == null ? INVALID : result);
+            }
+        }
+        return result == INVALID ? null : result;
+    }
+
+    /** The cache-less scan behind {@link #normalize(String)}. */
+    public static String normalizeUncached(String phone) {
+        long digits = 0; // the digits seen so far, as a number
+        int count = 0;
+        int leading = 0; // first two digits, to recognise the prefixes
+        boolean plus = false;
+
+        for (int i = 0, n = phone.length(); i < n; i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++count > MAX_DIGITS) return null;
+                digits = digits * 10 + (c - '0');
+                if (count <= 2) leading = leading * 10 + (c - '0');
+            } else if (c == '+') {
+                if (plus || count > 0) return null; // only as the very first symbol
+                plus = true;
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                return null;
+            }
+        }
+
+        // Strip the prefix, keeping the last 10 digits
+        switch (count) {
+            case NATIONAL_DIGITS:
+                if (plus) return null;
+                break;
+            case NATIONAL_DIGITS + 1:
+                if (plus || leading / 10 != 0) return null; // 0XXXXXXXXXX
+                break;
+            case NATIONAL_DIGITS + 2:
+                if (leading != 91) return null; // (+)91XXXXXXXXXX
+                break;
+            case NATIONAL_DIGITS + 4:
+                if (plus || leading != 0) return null; // 0091XXXXXXXXXX; the 91 is checked below
+                if (digits / 10_000_000_000L % 100 != 91) return null;
+                break;
+            default:
+                return null;
+        }
+        long national = digits % 10_000_000_000L;
+        if (national < 6_000_000_000L) return null; // mobile numbers start with 6-9
+
+        char[] out = new char[DEFAULT_COUNTRY_PREFIX.length() + NATIONAL_DIGITS];
+        DEFAULT_COUNTRY_PREFIX.getChars(0, DEFAULT_COUNTRY_PREFIX.length(), out, 0);
+        for (int i = out.length - 1; i >= DEFAULT_COUNTRY_PREFIX.length(); i--) {
+            out[i] = (char) ('0' + national % 10);
+            national /= 10;
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,51 @@
+package com.smsindia.dispatch;
+
+/**
+ * The sent/delivery result codes the radio reports, mirrored from
+ * {@code Activity.RESULT_OK} and {@code SmsManager.RESULT_ERROR_*} so the
+ * dispatch core can interpret them without the Android SDK.
+ */
+public final class ResultCodes {
+
+    public static final int RESULT_OK = -1;
+    public static final int RESULT_ERROR_GENERIC_FAILURE = 1;
+    public static final int RESULT_ERROR_RADIO_OFF = 2;
+    public static final int RESULT_ERROR_NULL_PDU = 3;
+    public static final int RESULT_ERROR_NO_SERVICE = 4;
+    public static final int RESULT_ERROR_LIMIT_EXCEEDED = 5;
+
+    public static final String STATUS_SENT = "sent";
+    public static final String STATUS_FAILED = "failed";
+
+    private ResultCodes() {
+    }
+
+    /**
+     * True if a sent result means the message never left and may go out later:
+     * the radio was off or out of service, the carrier throttled it, or a
+     * generic (usually transient) radio failure. A bad PDU fails every time.
+     */
+    public static boolean isRetryable(int resultCode) {
+        switch (resultCode) {
+            case RESULT_ERROR_GENERIC_FAILURE:
+            case RESULT_ERROR_RADIO_OFF:
+            case RESULT_ERROR_NO_SERVICE:
+            case RESULT_ERROR_LIMIT_EXCEEDED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** True if the result says something about the health of the SIM's radio. */
+    public static boolean isRadioFailure(int resultCode) {
+        return resultCode == RESULT_ERROR_GENERIC_FAILURE
+                || resultCode == RESULT_ERROR_RADIO_OFF
+                || resultCode == RESULT_ERROR_NO_SERVICE;
+    }
+
+    /** The sent_logs status a final result code settles a task with. */
+    public static String statusOf(int resultCode) {
+        return resultCode == RESULT_OK ? STATUS_SENT : STATUS_FAILED;
+    }
+}
@@ -0,0 +1,88 @@
+package com.smsindia.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tasks that failed with a retryable error, held until their backoff has
+ * passed. The delay doubles per attempt from {@link #BASE_DELAY_MS} up to
+ * {@link #MAX_DELAY_MS}, with jitter so a batch that failed together does
+ * not come back together. All {@link #MAX_RETRIES} backoffs fit inside a
+ * lease, but a retry may then wait in the scheduler past its
+ * {@link SmsTask#leaseExpiresAt} (e.g. while every breaker is open), and is
+ * dropped there rather than sent, as the task may be someone else's by then.
+ */
+public class RetryQueue {
+
+    public static final int MAX_RETRIES = 3;
+    static final long BASE_DELAY_MS = 10000;
+    static final long MAX_DELAY_MS = 60000;
+    private static final double JITTER = 0.2;
+
+    private static final class Entry {
+        final SmsTask task;
+        final long dueAt;
+
+        Entry(SmsTask task, long dueAt) {
+            this.task = task;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>((a, b) -> Long.compare(a.dueAt, b.dueAt));
+
+    /** Backoff before the given retry (1 for the first retry). */
+    public static long delayFor(int attempt) {
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt - 1, 16));
+        double jitter = 1.0 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (delay * jitter);
+    }
+
+    /**
+     * Schedules the task's next attempt.
+     *
+     * @return false if it is out of retries or would only be due after its deadline
+     */
+    public synchronized boolean offer(SmsTask failed, long now) {
+        if (failed.attempt >= MAX_RETRIES) return false;
+        SmsTask retry = failed.nextAttempt();
+        long dueAt = now + delayFor(retry.attempt);
+        if (retry.isExpired(dueAt)) return false;
+        queue.add(new Entry(retry, dueAt));
+        notifyAll();
+        return true;
+    }
+
+    /** Blocks until the earliest retry is due and removes it. */
+    public synchronized SmsTask takeDue() throws InterruptedException {
+        while (true) {
+            Entry head = queue.peek();
+            if (head == null) {
+                wait();
+                continue;
+            }
+            long remaining = head.dueAt - System.currentTimeMillis();
+            if (remaining <= 0) {
+                queue.poll();
+                return head.task;
+            }
+            wait(remaining);
+        }
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /** Removes every waiting retry, e.g. to hand the leases back on stop. */
+    public synchronized List<SmsTask> drain() {
+        List<SmsTask> drained = new ArrayList<>(queue.size());
+        for (Entry entry : queue) {
+            drained.add(entry.task);
+        }
+        queue.clear();
+        return drained;
+    }
+}
@@ -0,0 +1,140 @@
+package com.smsindia.dispatch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Token-bucket send pacing for one SIM subscription. The rate creeps up
+ * (additive increase) while results come back OK and is cut back
+ * (multiplicative decrease) when the carrier or Android's outgoing SMS limit
+ * starts throttling. A token is one SMS segment: a multipart message pays
+ * for its extra parts through {@link #charge(int)}, since that is what the
+ * carrier and Android count.
+ *
+ * Governors live in a process-wide registry so that SmsDeliveryReceiver can
+ * feed results back to the same instance the sending loop is paced by.
+ */
+public class SendRateGovernor {
+
+    private static final Logger LOG = Logger.getLogger("SendRateGovernor");
+
+    public static final double MIN_RATE = 0.1;              // segments/sec
+    public static final double DEFAULT_RATE = 1000.0 / 1200; // the old fixed 1200 ms pause
+    public static final double DEFAULT_MAX_RATE = 4.0;
+
+    private static final double INCREASE_STEP = 0.05;
+    private static final double LIMIT_BACKOFF = 0.5;
+    private static final double FAILURE_BACKOFF = 0.75;
+    private static final int FAILURE_BURST = 3;
+
+    private static final Map<Integer, SendRateGovernor> governors = new ConcurrentHashMap<>();
+
+    private final int subscriptionId;
+    private double rate = DEFAULT_RATE;
+    private double maxRate = DEFAULT_MAX_RATE;
+    private double tokens = 1.0;
+    private long lastRefillNanos = System.nanoTime();
+    private int consecutiveFailures = 0;
+
+    private SendRateGovernor(int subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+
+    public static SendRateGovernor forSubscription(int subscriptionId) {
+        return governors.computeIfAbsent(subscriptionId, SendRateGovernor::new);
+    }
+
+    /** Blocks until the bucket holds a token for one more message. */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            refill();
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return;
+            }
+            long waitMs = (long) Math.ceil((1.0 - tokens) / rate * 1000);
+            wait(Math.max(1, waitMs)); // woken early if the rate changes
+        }
+    }
+
+    /**
+     * Takes tokens for the segments a sent message used beyond the one
+     * {@link #acquire()} took. The bucket may go into debt; the next acquire
+     * then waits until it is paid off.
+     */
+    public synchronized void charge(int tokens) {
+        if (tokens <= 0) return;
+        refill();
+        this.tokens -= tokens;
+    }
+
+    /** Returns a token taken by {@link #acquire()} that was not used for a send. */
+    public synchronized void refund() {
+        tokens = Math.min(Math.max(1.0, rate), tokens + 1.0);
+        notifyAll();
+    }
+
+    /** Feeds a send/delivery result code back into the rate. */
+    public synchronized void onResult(int resultCode) {
+        double before = rate;
+        switch (resultCode) {
+            case ResultCodes.RESULT_OK:
+                consecutiveFailures = 0;
+                rate = Math.min(maxRate, rate + INCREASE_STEP);
+                break;
+            case ResultCodes.RESULT_ERROR_LIMIT_EXCEEDED:
+                consecutiveFailures = 0;
+                rate = Math.max(MIN_RATE, rate * LIMIT_BACKOFF);
+                tokens = 0;
+                break;
+            case ResultCodes.RESULT_ERROR_GENERIC_FAILURE:
+                if (++consecutiveFailures >= FAILURE_BURST) {
+                    consecutiveFailures = 0;
+                    rate = Math.max(MIN_RATE, rate * FAILURE_BACKOFF);
+                }
+                break;
+            default:
+                // No service / radio off etc. say nothing about the carrier's rate limit
+                break;
+        }
+        if (rate != before) {
+            if (rate < before) {
+                LOG.fine("SIM " + subscriptionId + " throttled: " + before + " -> " + rate + " segments/sec");
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /** Seeds the rate, e.g. from the value learned in a previous run. */
+    public synchronized void setRate(double rate) {
+        this.rate = clamp(rate);
+        notifyAll();
+    }
+
+    public synchronized double getMaxRate() {
+        return maxRate;
+    }
+
+    /** Per-device ceiling for tuning; the rate never grows past it. */
+    public synchronized void setMaxRate(double maxRate) {
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.rate = clamp(rate);
+        notifyAll();
+    }
+
+    private double clamp(double value) {
+        return Math.max(MIN_RATE, Math.min(maxRate, value));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double capacity = Math.max(1.0, rate); // at most one second of burst
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * rate);
+        lastRefillNanos = now;
+    }
+}
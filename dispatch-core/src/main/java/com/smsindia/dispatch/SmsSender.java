@@ -0,0 +1,21 @@
+package com.smsindia.dispatch;
+
+/**
+ * Hands messages to a radio. On a device this wraps SmsManager; simulations
+ * and benchmarks plug in fakes.
+ */
+public interface SmsSender {
+
+    /**
+     * Sends one task on the given lane. Results arrive asynchronously and are
+     * fed back through {@link SendRateGovernor#onResult(int)} and
+     * {@link MultipartAggregator}.
+     *
+     * @param queuedAt when the task entered the scheduler, for latency tracking
+     * @return the number of segments the radio was handed, which is what the
+     *         lane's governor is charged; 0 if the sender skipped the task
+     *         (e.g. it was already sent)
+     * @throws Exception if the message could not be handed to the radio
+     */
+    int send(DispatchLane lane, SmsTask task, long queuedAt) throws Exception;
+}
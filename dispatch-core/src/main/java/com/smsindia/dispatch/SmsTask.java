@@ -0,0 +1,109 @@
+package com.smsindia.dispatch;
+
+/**
+ * One sms_tasks entry as the dispatch core sees it: an immutable value
+ * decoded once when the task is leased. The phone number is normalized at
+ * construction, and the body's encoding and segment count are worked out
+ * once through {@link MessageEncoding}, so nothing downstream re-parses
+ * either. Stores decode their own
+ * documents into this, so nothing past the {@link TaskStore} boundary
+ * depends on Firestore.
+ */
+public final class SmsTask {
+
+    public static final int DEFAULT_PRIORITY = 0;
+    public static final int MAX_PRIORITY = 9;
+    public static final long NO_DEADLINE = 0;
+    public static final long NO_LEASE = 0;
+
+    public final String id;
+    /** E.164 number if {@link #hasValidPhone()}, otherwise the original text for logging. */
+    public final String phone;
+    /** The body to send; transliterated to GSM-7 if {@link MessageEncoding} is set to. */
+    public final String message;
+    /**
+     * SMS segments the body should go out as. An estimate: the governor is
+     * charged for the parts the {@link SmsSender} actually hands the radio.
+     */
+    public final int segments;
+    /** 0 (bulk) to {@link #MAX_PRIORITY} (e.g. OTPs); higher is sent first. */
+    public final int priority;
+    /** Epoch millis after which the message is pointless to send, or {@link #NO_DEADLINE}. */
+    public final long expiresAt;
+    /** 0 for the first send, then one more per retry on this device. */
+    public final int attempt;
+    /** Epoch millis after which the task may no longer be sent here, or {@link #NO_LEASE}. */
+    public final long leaseExpiresAt;
+
+    private final boolean validPhone;
+
+    public SmsTask(String id, String phone, String message) {
+        this(id, phone, message, DEFAULT_PRIORITY, NO_DEADLINE);
+    }
+
+    public SmsTask(String id, String phone, String message, int priority, long expiresAt) {
+        this(id, phone, message, priority, expiresAt, NO_LEASE);
+    }
+
+    /**
+     * @param leaseExpiresAt when this worker's claim runs out, less whatever
+     *                       margin the store needs to record a send in time
+     */
+    public SmsTask(String id, String phone, String message, int priority, long expiresAt, long leaseExpiresAt) {
+        String normalized = PhoneNumbers.normalize(phone);
+        MessageEncoding.Segmentation encoding = MessageEncoding.analyze(message);
+        this.id = id;
+        this.validPhone = normalized != null;
+        this.phone = validPhone ? normalized : phone;
+        this.message = encoding != null ? encoding.body : null;
+        this.segments = encoding != null ? encoding.segments : 1;
+        this.priority = Math.max(DEFAULT_PRIORITY, Math.min(MAX_PRIORITY, priority));
+        this.expiresAt = expiresAt;
+        this.attempt = 0;
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    private SmsTask(SmsTask previous) {
+        this.id = previous.id;
+        this.validPhone = previous.validPhone;
+        this.phone = previous.phone;
+        this.message = previous.message;
+        this.segments = previous.segments;
+        this.priority = previous.priority;
+        this.expiresAt = previous.expiresAt;
+        this.attempt = previous.attempt + 1;
+        this.leaseExpiresAt = previous.leaseExpiresAt;
+    }
+
+    /** The same task for its next retry. */
+    public SmsTask nextAttempt() {
+        return new SmsTask(this);
+    }
+
+    /**
+     * Idempotency key for one send attempt: the first attempt uses the task
+     * id itself, so "was this task sent" checks keep working, and each retry
+     * gets its own key.
+     */
+    public String attemptKey() {
+        return attempt == 0 ? id : id + "#" + attempt;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt != NO_DEADLINE && expiresAt <= now;
+    }
+
+    /** True once another worker may have claimed the task, so sending it here could send it twice. */
+    public boolean isLeaseLapsed(long now) {
+        return leaseExpiresAt != NO_LEASE && leaseExpiresAt <= now;
+    }
+
+    public boolean hasValidPhone() {
+        return validPhone;
+    }
+
+    /** True if every field the radio needs is present. */
+    public boolean isComplete() {
+        return id != null && phone != null && message != null;
+    }
+}
@@ -0,0 +1,27 @@
+package com.smsindia.dispatch;
+
+import java.util.List;
+
+/**
+ * Source of leased tasks for one worker. On a device this is sms_tasks in
+ * Firestore; simulations use an in-memory store.
+ */
+public interface TaskStore {
+
+    /**
+     * Leases up to {@code max} tasks to this worker, waiting up to
+     * {@code timeoutMs} for some to become available.
+     *
+     * @return the tasks this worker now holds, possibly empty
+     */
+    List<SmsTask> claim(int max, long timeoutMs) throws Exception;
+
+    /** Hands leased but unsent tasks back to the pool, e.g. on stop. */
+    void release(List<SmsTask> tasks);
+
+    /** Drops a task whose send failed before it reached the radio. */
+    void discard(SmsTask task);
+
+    /** Settles a task that can never be sent (e.g. an invalid number) without sending it. */
+    void reject(SmsTask task, String reason);
+}
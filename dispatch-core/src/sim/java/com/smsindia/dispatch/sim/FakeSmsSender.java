@@ -0,0 +1,123 @@
+package com.smsindia.dispatch.sim;
+
+import com.smsindia.dispatch.DispatchLane;
+import com.smsindia.dispatch.Dispatcher;
+import com.smsindia.dispatch.ResultCodes;
+import com.smsindia.dispatch.SmsSender;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One worker's radio. Sends report a sent result after
+ * {@link SimulationConfig#sendLatencyMs} and, if that was OK, a delivery
+ * report {@link SimulationConfig#deliveryLatencyMs} later. Failures are drawn
+ * from the configured rates, and a SIM that exceeds
+ * {@link SimulationConfig#carrierLimitPerMinute} gets LIMIT_EXCEEDED, which
+ * throttles its governor just like on a device.
+ */
+public class FakeSmsSender implements SmsSender {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private final SimulationConfig config;
+    private final Set<String> attempted;
+    private final SimWritePipeline writes;
+    private final SimStats stats;
+    private final ScheduledExecutorService radio;
+    private final Random random;
+    private final Map<Integer, ArrayDeque<Long>> recentSends = new ConcurrentHashMap<>(); // per subscription
+    private volatile Dispatcher dispatcher;
+
+    public FakeSmsSender(SimulationConfig config, Set<String> attempted, SimWritePipeline writes, SimStats stats,
+                         ScheduledExecutorService radio, long seed) {
+        this.config = config;
+        this.attempted = attempted;
+        this.writes = writes;
+        this.stats = stats;
+        this.radio = radio;
+        this.random = new Random(seed);
+    }
+
+    /** The worker that takes retryable failures back, like the app's InFlightRegistry retry handler. */
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public int send(DispatchLane lane, SmsTask task, long queuedAt) {
+        // Same per-device idempotency as the outbox journal
+        if (!attempted.add(task.attemptKey())) return 0;
+        attempted.add(task.id);
+
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < config.sendExceptionRate) {
+            stats.sendExceptions.incrementAndGet();
+            throw new IllegalStateException("Simulated radio error");
+        }
+
+        stats.recordSend();
+        int resultCode = resultFor(lane.subscriptionId, roll - config.sendExceptionRate);
+        radio.schedule(() -> onSent(lane, task, resultCode), config.sendLatencyMs, TimeUnit.MILLISECONDS);
+        return task.segments; // no SmsManager.divideMessage here, so the encoder's count stands in for the radio's
+    }
+
+    private int resultFor(int subscriptionId, double roll) {
+        if (overCarrierLimit(subscriptionId)) {
+            return ResultCodes.RESULT_ERROR_LIMIT_EXCEEDED;
+        }
+        if (roll < config.genericFailureRate) {
+            return ResultCodes.RESULT_ERROR_GENERIC_FAILURE;
+        }
+        if (roll < config.genericFailureRate + config.noServiceRate) {
+            return ResultCodes.RESULT_ERROR_NO_SERVICE;
+        }
+        return ResultCodes.RESULT_OK;
+    }
+
+    // Sliding one-minute window of accepted sends per SIM
+    private boolean overCarrierLimit(int subscriptionId) {
+        ArrayDeque<Long> window = recentSends.computeIfAbsent(subscriptionId, id -> new ArrayDeque<>());
+        long now = System.currentTimeMillis();
+        synchronized (window) {
+            while (!window.isEmpty() && window.peekFirst() <= now - MINUTE_MS) {
+                window.pollFirst();
+            }
+            if (window.size() >= config.carrierLimitPerMinute) return true;
+            window.addLast(now);
+            return false;
+        }
+    }
+
+    private void onSent(DispatchLane lane, SmsTask task, int resultCode) {
+        lane.governor.onResult(resultCode);
+        lane.breaker.onResult(resultCode);
+        if (resultCode != ResultCodes.RESULT_OK) {
+            if (resultCode == ResultCodes.RESULT_ERROR_LIMIT_EXCEEDED) {
+                stats.limitExceeded.incrementAndGet();
+            }
+            Dispatcher worker = dispatcher;
+            if (worker != null && worker.retryLater(task, resultCode)) return;
+            stats.failed.incrementAndGet();
+            writes.settle(task.id, false);
+            return;
+        }
+        stats.recordAccepted(task);
+        if (config.markSent) {
+            writes.markSent(task.id);
+        }
+        radio.schedule(() -> {
+            stats.delivered.incrementAndGet();
+            writes.settle(task.id, true);
+        }, config.deliveryLatencyMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,174 @@
+package com.smsindia.dispatch.sim;
+
+import com.smsindia.dispatch.DispatchLane;
+import com.smsindia.dispatch.DispatchMetrics;
+import com.smsindia.dispatch.Dispatcher;
+import com.smsindia.dispatch.SendRateGovernor;
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs N {@link Dispatcher}s, each standing in for one device's
+ * SmsForegroundService, against one shared {@link InMemoryTaskStore} and
+ * fake radios, then reports throughput, duplicate sends and Firestore writes
+ * per delivered message.
+ *
+ * <pre>
+ * ./gradlew :dispatch-core:simulate -Psim="--workers=50 --tasks=20000 --leaseMs=30000"
+ * </pre>
+ *
+ * Delivery reports that outlive the lease (the sent mark must hold the task):
+ * <pre>
+ * ./gradlew :dispatch-core:simulate -Psim="--workers=20 --tasks=5000 --leaseMs=10000 --deliveryLatencyMs=20000"
+ * </pre>
+ */
+public class FleetSimulation {
+
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+
+    private final SimulationConfig config;
+    private final InMemoryTaskStore store;
+    private final SimStats stats = new SimStats();
+    private final ScheduledExecutorService background = Executors.newScheduledThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "SimBackground");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Dispatcher> workers = new ArrayList<>();
+    private final List<SimWritePipeline> pipelines = new ArrayList<>();
+
+    public FleetSimulation(SimulationConfig config) {
+        this.config = config;
+        this.store = new InMemoryTaskStore(config);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Logger.getLogger("").setLevel(Level.SEVERE); // the fake radio's failures are expected
+        SimulationConfig config = SimulationConfig.parse(args);
+        System.out.println("Config: " + config.describe());
+        new FleetSimulation(config).run();
+    }
+
+    public void run() throws InterruptedException {
+        Random mix = new Random(config.seed);
+        long urgentExpiresAt = config.urgentTtlMs > 0
+                ? System.currentTimeMillis() + config.urgentTtlMs : SmsTask.NO_DEADLINE;
+        for (int i = 0; i < config.tasks; i++) {
+            boolean urgent = mix.nextDouble() < config.urgentFraction;
+            store.add(String.format(Locale.US, "task-%07d", i), "98" + String.format(Locale.US, "%08d", i),
+                    "Your verification code is " + (100000 + i % 900000),
+                    urgent ? SmsTask.MAX_PRIORITY : SmsTask.DEFAULT_PRIORITY,
+                    urgent ? urgentExpiresAt : SmsTask.NO_DEADLINE);
+        }
+
+        for (int w = 0; w < config.workers; w++) {
+            workers.add(createWorker(w));
+        }
+
+        long started = System.currentTimeMillis();
+        stats.markStart();
+        for (Dispatcher worker : workers) {
+            worker.start();
+        }
+
+        long deadline = started + config.maxDurationMs;
+        long nextProgress = started + PROGRESS_INTERVAL_MS;
+        while (store.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            if (System.currentTimeMillis() >= nextProgress) {
+                nextProgress += PROGRESS_INTERVAL_MS;
+                System.out.printf(Locale.US, "  t=%5.1fs remaining=%d delivered=%d%n",
+                        (System.currentTimeMillis() - started) / 1000.0, store.size(), stats.delivered.get());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - started;
+
+        for (Dispatcher worker : workers) {
+            worker.stop();
+        }
+        for (SimWritePipeline pipeline : pipelines) {
+            pipeline.flush();
+        }
+        background.shutdownNow();
+
+        printReport(elapsed);
+    }
+
+    private Dispatcher createWorker(int index) {
+        String workerId = "device-" + index;
+        Set<String> attempted = ConcurrentHashMap.newKeySet();
+        SimWritePipeline writes = new SimWritePipeline(store, background, config.flushIntervalMs);
+        pipelines.add(writes);
+
+        List<DispatchLane> lanes = new ArrayList<>();
+        for (int slot = 0; slot < config.simsPerWorker; slot++) {
+            int subscriptionId = index * 100 + slot; // governors are registered per subscription
+            SendRateGovernor governor = SendRateGovernor.forSubscription(subscriptionId);
+            governor.setMaxRate(config.maxRate);
+            governor.setRate(config.initialRate);
+            lanes.add(new DispatchLane(slot, subscriptionId, governor));
+        }
+
+        FakeSmsSender sender = new FakeSmsSender(config, attempted, writes, stats, background, config.seed + index);
+        Dispatcher worker = new Dispatcher(store.forWorker(workerId, attempted, writes), sender, lanes, config.batchSize);
+        sender.setDispatcher(worker);
+        return worker;
+    }
+
+    private void printReport(long elapsedMs) {
+        double seconds = elapsedMs / 1000.0;
+        long delivered = stats.delivered.get();
+        long sends = stats.sends.get();
+        long writes = store.getTotalWrites();
+        long attempts = store.claimAttempts.get();
+
+        System.out.println();
+        System.out.println("=== Fleet simulation report ===");
+        System.out.printf(Locale.US, "elapsed_s              %.1f%n", seconds);
+        System.out.printf(Locale.US, "tasks_remaining        %d%n", store.size());
+        System.out.printf(Locale.US, "sends                  %d%n", sends);
+        System.out.printf(Locale.US, "delivered              %d%n", delivered);
+        System.out.printf(Locale.US, "failed                 %d (limit_exceeded %d, send_exceptions %d)%n",
+                stats.failed.get(), stats.limitExceeded.get(), stats.sendExceptions.get());
+        System.out.printf(Locale.US, "throughput_per_s       %.2f delivered, %.2f sent%n",
+                delivered / seconds, sends / seconds);
+        System.out.printf(Locale.US, "duplicate_sends        %d (%.3f%% of unique tasks sent)%n",
+                stats.duplicateSends.get(), percent(stats.duplicateSends.get(), stats.getUniqueTasksSent()));
+        System.out.printf(Locale.US, "lease_conflicts        %d (%.1f%% of claim candidates)%n",
+                store.claimConflicts.get(), percent(store.claimConflicts.get(), attempts));
+        System.out.printf(Locale.US, "feed_window_moves      %d%n", store.windowMoves.get());
+        System.out.printf(Locale.US, "writes                 %d (lease %d, release %d, sent_mark %d, delete %d, log %d, rollup %d, ledger %d, balance %d)%n",
+                writes, store.leaseWrites.get(), store.releaseWrites.get(), store.sentMarkWrites.get(), store.deleteWrites.get(),
+                store.logWrites.get(), store.rollupWrites.get(), store.ledgerWrites.get(), store.balanceWrites.get());
+        System.out.printf(Locale.US, "duplicate_credits      %d refused by the ledger%n", store.duplicateCredits.get());
+        System.out.printf(Locale.US, "writes_per_delivered   %.2f%n", delivered == 0 ? 0.0 : writes / (double) delivered);
+
+        DispatchMetrics.Snapshot metrics = DispatchMetrics.snapshot();
+        Long expired = metrics.failures.get(DispatchMetrics.FAILURE_EXPIRED);
+        System.out.printf(Locale.US, "expired_unsent         %d%n", expired == null ? 0 : expired);
+        System.out.printf(Locale.US, "retries                %d%n", metrics.retriesTotal);
+        for (Map.Entry<Integer, Long> entry : metrics.waitP50Ms.entrySet()) {
+            System.out.printf(Locale.US, "queue_wait_p%-2d         p50 %d ms, p95 %d ms%n",
+                    entry.getKey(), entry.getValue(), metrics.waitP95Ms.get(entry.getKey()));
+        }
+        for (Map.Entry<Integer, long[]> entry : stats.getSentAfterPercentiles().entrySet()) {
+            System.out.printf(Locale.US, "sent_after_p%-2d         p50 %d ms, p95 %d ms since queued%n",
+                    entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0.0 : 100.0 * part / whole;
+    }
+}
@@ -0,0 +1,278 @@
+package com.smsindia.dispatch.sim;
+
+import com.smsindia.dispatch.SmsTask;
+import com.smsindia.dispatch.TaskStore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the sms_tasks collection shared by every simulated
+ * worker. It reproduces what matters for contention: each worker sees a
+ * window of {@link SimulationConfig#feedWindow} tasks in id order, a claim
+ * reads candidates, waits one transaction round trip and only then leases
+ * whatever is still free, and tasks are deleted only once a worker's
+ * write-behind flush lands. Like TaskFeed, each worker also sees the
+ * {@link SimulationConfig#urgentWindow} most urgent tasks wherever they
+ * sit, a claim takes the most urgent candidates first, and a worker whose
+ * full window holds
+ * nothing claimable moves on to the next one, going back to the head every
+ * {@link SimulationConfig#leaseMs} or, from the end, every
+ * {@link SimulationConfig#tailRewindMs}. A task marked sent is taken until
+ * it is deleted, whatever its lease says. Every Firestore write the real app
+ * would make is counted.
+ */
+public class InMemoryTaskStore {
+
+    private static class Entry {
+        final String id;
+        final String phone;
+        final String message;
+        final int priority;
+        final long expiresAt;
+        String holder;
+        long leaseExpiresAt;
+        boolean sent;
+
+        Entry(String id, String phone, String message, int priority, long expiresAt) {
+            this.id = id;
+            this.phone = phone;
+            this.message = message;
+            this.priority = priority;
+            this.expiresAt = expiresAt;
+        }
+
+        long deadline() {
+            return expiresAt == SmsTask.NO_DEADLINE ? Long.MAX_VALUE : expiresAt;
+        }
+
+        boolean isClaimable(long now) {
+            return !sent && (holder == null || leaseExpiresAt <= now);
+        }
+    }
+
+    private static final Comparator<Entry> URGENCY = (a, b) -> {
+        if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+        return Long.compare(a.deadline(), b.deadline());
+    };
+
+    // The urgent listener's order: priority, then id
+    private static final Comparator<Entry> BY_PRIORITY = (a, b) -> {
+        if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+        return a.id.compareTo(b.id);
+    };
+
+    // One worker's TaskFeed window
+    private static class Window {
+        String start; // exclusive, null for the head
+        long rewoundAt = System.currentTimeMillis();
+    }
+
+    private final SimulationConfig config;
+    private final long sendMargin;
+    private final TreeMap<String, Entry> tasks = new TreeMap<>(); // id order, like TaskPager; guarded by this
+    private final TreeSet<Entry> urgent = new TreeSet<>(BY_PRIORITY); // tasks above the default priority
+    private final Set<String> credited = ConcurrentHashMap.newKeySet(); // the credit ledger
+
+    // Firestore writes, by kind
+    final AtomicLong leaseWrites = new AtomicLong();
+    final AtomicLong releaseWrites = new AtomicLong();
+    final AtomicLong deleteWrites = new AtomicLong();
+    final AtomicLong sentMarkWrites = new AtomicLong();
+    final AtomicLong logWrites = new AtomicLong();
+    final AtomicLong rollupWrites = new AtomicLong();
+    final AtomicLong ledgerWrites = new AtomicLong();
+    final AtomicLong balanceWrites = new AtomicLong();
+    final AtomicLong duplicateCredits = new AtomicLong(); // settlements the ledger refused
+
+    final AtomicLong claimAttempts = new AtomicLong(); // candidates taken into a lease transaction
+    final AtomicLong claimConflicts = new AtomicLong(); // candidates another worker leased first
+    final AtomicLong windowMoves = new AtomicLong(); // feed resubscriptions, each reading a window
+
+    public InMemoryTaskStore(SimulationConfig config) {
+        this.config = config;
+        // Like FirestoreTaskStore: time to send and flush the sent mark before the lease runs out
+        this.sendMargin = Math.min(config.sendLatencyMs + config.flushIntervalMs, config.leaseMs / 2);
+    }
+
+    public synchronized void add(String id, String phone, String message, int priority, long expiresAt) {
+        Entry entry = new Entry(id, phone, message, priority, expiresAt);
+        tasks.put(id, entry);
+        if (priority > SmsTask.DEFAULT_PRIORITY) {
+            urgent.add(entry);
+        }
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    public long getTotalWrites() {
+        return leaseWrites.get() + releaseWrites.get() + deleteWrites.get() + sentMarkWrites.get() + logWrites.get()
+                + rollupWrites.get() + ledgerWrites.get() + balanceWrites.get();
+    }
+
+    /** Writes the task's ledger entry; false if it was credited before. */
+    boolean credit(String taskId) {
+        if (!credited.add(taskId)) {
+            duplicateCredits.incrementAndGet();
+            return false;
+        }
+        ledgerWrites.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The {@link TaskStore} one worker dispatches from.
+     *
+     * @param attempted the worker's own sent ids, skipped at claim time like the app's outbox journal does
+     */
+    public TaskStore forWorker(String workerId, Set<String> attempted, SimWritePipeline writes) {
+        Window window = new Window();
+        return new TaskStore() {
+            @Override
+            public List<SmsTask> claim(int max, long timeoutMs) throws InterruptedException {
+                return InMemoryTaskStore.this.claim(workerId, window, attempted, max, timeoutMs);
+            }
+
+            @Override
+            public void release(List<SmsTask> held) {
+                InMemoryTaskStore.this.release(workerId, held);
+            }
+
+            @Override
+            public void discard(SmsTask task) {
+                writes.deleteTask(task.id);
+            }
+
+            @Override
+            public void reject(SmsTask task, String reason) {
+                writes.settle(task.id, false);
+            }
+        };
+    }
+
+    private List<SmsTask> claim(String workerId, Window window, Set<String> attempted, int max, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<String> candidates = new ArrayList<>(max);
+        List<Entry> claimable = new ArrayList<>();
+        synchronized (this) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                Set<Entry> urgentSeen = new HashSet<>();
+                for (Entry entry : urgent) {
+                    if (urgentSeen.size() == config.urgentWindow) break;
+                    urgentSeen.add(entry);
+                    if (entry.isClaimable(now) && !attempted.contains(entry.id)) claimable.add(entry);
+                }
+
+                int scanned = 0;
+                String last = null;
+                Map<String, Entry> view = window.start == null ? tasks : tasks.tailMap(window.start, false);
+                for (Entry entry : view.values()) {
+                    if (scanned == config.feedWindow) break;
+                    scanned++;
+                    last = entry.id;
+                    if (entry.isClaimable(now) && !attempted.contains(entry.id) && !urgentSeen.contains(entry)) {
+                        claimable.add(entry);
+                    }
+                }
+                if (!claimable.isEmpty()) {
+                    claimable.sort(URGENCY);
+                    for (int i = 0; i < Math.min(max, claimable.size()); i++) {
+                        candidates.add(claimable.get(i).id);
+                    }
+                    break;
+                }
+
+                // Nothing claimable: move the window like TaskFeed does
+                boolean full = scanned == config.feedWindow;
+                long sinceRewind = now - window.rewoundAt;
+                if (window.start != null && sinceRewind >= (full ? config.leaseMs : config.tailRewindMs)) {
+                    window.start = null;
+                    window.rewoundAt = now;
+                    windowMoves.incrementAndGet();
+                    continue;
+                }
+                if (full) {
+                    window.start = last;
+                    windowMoves.incrementAndGet();
+                    continue;
+                }
+
+                long remaining = deadline - now;
+                if (remaining <= 0) return new ArrayList<>();
+                wait(Math.min(remaining, 100)); // leases expire without a notify
+            }
+        }
+
+        // The transaction round trip: other workers may lease the same candidates meanwhile
+        Thread.sleep(config.claimLatencyMs);
+        claimAttempts.addAndGet(candidates.size());
+
+        List<SmsTask> held = new ArrayList<>(candidates.size());
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String id : candidates) {
+                Entry entry = tasks.get(id);
+                if (entry == null || !entry.isClaimable(now)) {
+                    claimConflicts.incrementAndGet();
+                    continue;
+                }
+                entry.holder = workerId;
+                entry.leaseExpiresAt = now + config.leaseMs;
+                held.add(new SmsTask(entry.id, entry.phone, entry.message, entry.priority, entry.expiresAt,
+                        entry.leaseExpiresAt - sendMargin));
+            }
+        }
+        leaseWrites.addAndGet(held.size());
+        return held;
+    }
+
+    private synchronized void release(String workerId, List<SmsTask> held) {
+        for (SmsTask task : held) {
+            Entry entry = tasks.get(task.id);
+            if (entry != null && workerId.equals(entry.holder)) {
+                entry.holder = null;
+                entry.leaseExpiresAt = 0;
+            }
+        }
+        releaseWrites.addAndGet(held.size());
+        notifyAll();
+    }
+
+    /** Applies committed sent marks; a task deleted meanwhile fails its own update only. */
+    synchronized void markSent(Iterable<String> ids) {
+        for (String id : ids) {
+            Entry entry = tasks.get(id);
+            if (entry != null) {
+                entry.sent = true;
+                sentMarkWrites.incrementAndGet();
+            }
+        }
+    }
+
+    /** Applies a committed batch of deletes. */
+    synchronized void delete(Iterable<String> ids) {
+        int count = 0;
+        for (Iterator<String> it = ids.iterator(); it.hasNext(); count++) {
+            Entry entry = tasks.remove(it.next());
+            if (entry != null && entry.priority > SmsTask.DEFAULT_PRIORITY) {
+                urgent.remove(entry);
+            }
+        }
+        deleteWrites.addAndGet(count);
+        notifyAll();
+    }
+}
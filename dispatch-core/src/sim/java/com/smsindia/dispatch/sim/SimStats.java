@@ -0,0 +1,75 @@
+package com.smsindia.dispatch.sim;
+
+import com.smsindia.dispatch.SmsTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Fleet-wide radio counters for one simulation run. */
+public class SimStats {
+
+    private final Map<String, AtomicInteger> sendsPerTask = new ConcurrentHashMap<>();
+    // Per priority: how long after the backlog was queued each task first reached the radio
+    private final Map<Integer, List<Long>> sentAfterMs = new TreeMap<>(Collections.reverseOrder());
+    private volatile long startedAt = System.currentTimeMillis();
+
+    final AtomicLong sends = new AtomicLong();
+    final AtomicLong duplicateSends = new AtomicLong();
+    final AtomicLong sendExceptions = new AtomicLong();
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong limitExceeded = new AtomicLong();
+
+    /** The backlog is queued; time-to-send is measured from here. */
+    void markStart() {
+        startedAt = System.currentTimeMillis();
+    }
+
+    void recordSend() {
+        sends.incrementAndGet();
+    }
+
+    /**
+     * Records a message the radio accepted; a task accepted before by any
+     * worker is a duplicate. Refused attempts never reach the recipient, so a
+     * retry after one is not.
+     */
+    void recordAccepted(SmsTask task) {
+        int count = sendsPerTask.computeIfAbsent(task.id, id -> new AtomicInteger()).incrementAndGet();
+        if (count > 1) {
+            duplicateSends.incrementAndGet();
+            return;
+        }
+        long after = System.currentTimeMillis() - startedAt;
+        synchronized (sentAfterMs) {
+            sentAfterMs.computeIfAbsent(task.priority, p -> new ArrayList<>()).add(after);
+        }
+    }
+
+    int getUniqueTasksSent() {
+        return sendsPerTask.size();
+    }
+
+    /** Per priority, highest first: {p50, p95} of the time from queueing the backlog to the first send. */
+    Map<Integer, long[]> getSentAfterPercentiles() {
+        Map<Integer, long[]> result = new TreeMap<>(Collections.reverseOrder());
+        synchronized (sentAfterMs) {
+            for (Map.Entry<Integer, List<Long>> entry : sentAfterMs.entrySet()) {
+                List<Long> sorted = new ArrayList<>(entry.getValue());
+                Collections.sort(sorted);
+                result.put(entry.getKey(), new long[]{percentile(sorted, 0.50), percentile(sorted, 0.95)});
+            }
+        }
+        return result;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size())));
+    }
+}
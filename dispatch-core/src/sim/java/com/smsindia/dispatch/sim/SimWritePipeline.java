@@ -0,0 +1,87 @@
+package com.smsindia.dispatch.sim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One worker's write-behind buffer, modelled on the app's
+ * DeliveryWritePipeline: settled tasks become a delete plus a sent_logs
+ * entry, each credit is a ledger entry keyed by task id plus an increment of
+ * one of the user's {@link #BALANCE_SHARDS} balance shards (merged per shard
+ * per flush), the day's rollup document takes one merged increment per
+ * flush, tasks the radio accepted are marked sent unless they settle first,
+ * and everything is committed every
+ * {@link SimulationConfig#flushIntervalMs}.
+ */
+public class SimWritePipeline {
+
+    static final int BALANCE_SHARDS = 10; // as in the app's CreditLedger
+
+    private final InMemoryTaskStore store;
+
+    // Pending mutations, guarded by this
+    private final Set<String> sentMarks = new LinkedHashSet<>();
+    private final Set<String> taskDeletes = new LinkedHashSet<>();
+    private int logAdds = 0;
+    private final Set<String> credits = new LinkedHashSet<>();
+
+    public SimWritePipeline(InMemoryTaskStore store, ScheduledExecutorService flushExecutor, long flushIntervalMs) {
+        this.store = store;
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void markSent(String taskId) {
+        if (!taskDeletes.contains(taskId)) {
+            sentMarks.add(taskId);
+        }
+    }
+
+    public synchronized void settle(String taskId, boolean delivered) {
+        sentMarks.remove(taskId);
+        if (delivered) {
+            credits.add(taskId);
+        }
+        taskDeletes.add(taskId);
+        logAdds++;
+    }
+
+    public synchronized void deleteTask(String taskId) {
+        sentMarks.remove(taskId);
+        taskDeletes.add(taskId);
+    }
+
+    public void flush() {
+        List<String> marks;
+        List<String> deletes;
+        synchronized (this) {
+            marks = new ArrayList<>(sentMarks);
+            sentMarks.clear();
+            deletes = new ArrayList<>(taskDeletes);
+            taskDeletes.clear();
+            store.logWrites.addAndGet(logAdds);
+            if (logAdds > 0) {
+                store.rollupWrites.incrementAndGet(); // one user, one day per flush
+            }
+            logAdds = 0;
+            Set<Integer> shards = new HashSet<>();
+            for (String taskId : credits) {
+                if (store.credit(taskId)) {
+                    shards.add(Math.floorMod(taskId.hashCode(), BALANCE_SHARDS));
+                }
+            }
+            credits.clear();
+            store.balanceWrites.addAndGet(shards.size());
+        }
+        if (!marks.isEmpty()) {
+            store.markSent(marks);
+        }
+        if (!deletes.isEmpty()) {
+            store.delete(deletes);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.smsindia.dispatch.sim;
+
+import java.util.Locale;
+
+/**
+ * Knobs for one {@link FleetSimulation} run, parsed from {@code --name=value}
+ * arguments. Defaults model a small fleet draining a modest backlog.
+ */
+public class SimulationConfig {
+
+    public int workers = 10;
+    public int simsPerWorker = 2;
+    public int tasks = 2000;
+    public long maxDurationMs = 60000;
+    public long seed = 42;
+
+    // Task mix
+    public double urgentFraction = 0.1; // share of tasks at SmsTask.MAX_PRIORITY, like OTPs
+    public long urgentTtlMs = 0;        // expiresAt for urgent tasks, relative to the start; 0 = none
+
+    // Dispatch
+    public int batchSize = 20;
+    public double initialRate = 5.0;   // msgs/sec per SIM
+    public double maxRate = 20.0;
+    public long leaseMs = 5 * 60 * 1000;
+
+    // Task store
+    public int feedWindow = 200;        // tasks each worker's feed sees at once, like TaskFeed
+    public int urgentWindow = 100;      // most urgent tasks every worker also sees; 0 = none
+    public long tailRewindMs = 30000;   // back to the head from the end of the collection, like TaskFeed
+    public long claimLatencyMs = 50;    // lease transaction round trip
+    public long flushIntervalMs = 2000; // write-behind batching, like DeliveryWritePipeline
+    public boolean markSent = true;     // stamp sentBy once the radio accepts a task; false relies on the lease alone
+
+    // Fake radio
+    public long sendLatencyMs = 200;      // until the sent result
+    public long deliveryLatencyMs = 1500; // until the delivery report
+    public double genericFailureRate = 0.02;
+    public double noServiceRate = 0.005;
+    public double sendExceptionRate = 0.001;
+    public int carrierLimitPerMinute = 600; // per SIM; above this sends fail with LIMIT_EXCEEDED
+
+    public static SimulationConfig parse(String[] args) {
+        SimulationConfig config = new SimulationConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(name, value);
+        }
+        return config;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "workers": workers = Integer.parseInt(value); break;
+            case "simsPerWorker": simsPerWorker = Integer.parseInt(value); break;
+            case "tasks": tasks = Integer.parseInt(value); break;
+            case "maxDurationMs": maxDurationMs = Long.parseLong(value); break;
+            case "seed": seed = Long.parseLong(value); break;
+            case "urgentFraction": urgentFraction = Double.parseDouble(value); break;
+            case "urgentTtlMs": urgentTtlMs = Long.parseLong(value); break;
+            case "batchSize": batchSize = Integer.parseInt(value); break;
+            case "initialRate": initialRate = Double.parseDouble(value); break;
+            case "maxRate": maxRate = Double.parseDouble(value); break;
+            case "leaseMs": leaseMs = Long.parseLong(value); break;
+            case "feedWindow": feedWindow = Integer.parseInt(value); break;
+            case "urgentWindow": urgentWindow = Integer.parseInt(value); break;
+            case "tailRewindMs": tailRewindMs = Long.parseLong(value); break;
+            case "claimLatencyMs": claimLatencyMs = Long.parseLong(value); break;
+            case "flushIntervalMs": flushIntervalMs = Long.parseLong(value); break;
+            case "markSent": markSent = Boolean.parseBoolean(value); break;
+            case "sendLatencyMs": sendLatencyMs = Long.parseLong(value); break;
+            case "deliveryLatencyMs": deliveryLatencyMs = Long.parseLong(value); break;
+            case "genericFailureRate": genericFailureRate = Double.parseDouble(value); break;
+            case "noServiceRate": noServiceRate = Double.parseDouble(value); break;
+            case "sendExceptionRate": sendExceptionRate = Double.parseDouble(value); break;
+            case "carrierLimitPerMinute": carrierLimitPerMinute = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+
+    public String describe() {
+        return String.format(Locale.US,
+                "workers=%d simsPerWorker=%d tasks=%d urgent=%.2f/ttl=%dms batchSize=%d rate=%.1f..%.1f/s leaseMs=%d "
+                        + "feedWindow=%d urgentWindow=%d tailRewindMs=%d claimLatencyMs=%d flushIntervalMs=%d markSent=%b "
+                        + "sendLatencyMs=%d deliveryLatencyMs=%d failures=%.3f/%.3f/%.3f carrierLimitPerMinute=%d seed=%d",
+                workers, simsPerWorker, tasks, urgentFraction, urgentTtlMs, batchSize, initialRate, maxRate, leaseMs,
+                feedWindow, urgentWindow, tailRewindMs, claimLatencyMs, flushIntervalMs, markSent, sendLatencyMs,
+                deliveryLatencyMs, genericFailureRate, noServiceRate, sendExceptionRate, carrierLimitPerMinute, seed);
+    }
+}